@@ -0,0 +1,103 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recognising commands, with the original command patterns and with
+ * the parser which replaced them. Every line in a channel is checked for
+ * commands, and nearly all of them are plain chat, so the miss case matters
+ * most.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+    private static final int LINES = 1024;
+
+    private String[] chat;
+    private String sed, print;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<Corpus.Line> lines;
+
+        lines = new Corpus(1).lines(LINES);
+        this.chat = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            this.chat[i] = lines.get(i).prefix + lines.get(i).body;
+        }
+
+        this.sed = "s/colou?r \\/ shade/hue/g~2";
+        this.print = "p#kernel (patch|commit)#ro~1";
+        this.next = 0;
+    }
+
+    private String chat() {
+        return this.chat[this.next++ & (LINES - 1)];
+    }
+
+    @Benchmark
+    public boolean chatLine() {
+        String line;
+
+        line = this.chat();
+        return Command.PRINT_MATCH.matcher(line).find() || Command.SED_MATCH.matcher(line).find();
+    }
+
+    // the same lines, as the bot now handles them: classified first, and
+    // only parsed if they might be commands.
+    @Benchmark
+    public boolean chatLineClassified() {
+        String line;
+
+        line = this.chat();
+        return TimeMachine.mayBeCommand(line) &&
+            (Command.parseRecall(line) != null || Command.parseSearchReplace(line) != null);
+    }
+
+    @Benchmark
+    public boolean chatLineParsed() {
+        String line;
+
+        line = this.chat();
+        return Command.parseRecall(line) != null || Command.parseSearchReplace(line) != null;
+    }
+
+    @Benchmark
+    public boolean sedHit() {
+        return Command.SED_MATCH.matcher(this.sed).find();
+    }
+
+    @Benchmark
+    public boolean printHit() {
+        return Command.PRINT_MATCH.matcher(this.print).find();
+    }
+
+    @Benchmark
+    public Command sedParse() {
+        return Command.parseSearchReplace(this.sed);
+    }
+
+    @Benchmark
+    public Command printParse() {
+        return Command.parseRecall(this.print);
+    }
+}
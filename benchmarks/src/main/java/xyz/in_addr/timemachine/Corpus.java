@@ -0,0 +1,182 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of synthetic but realistic looking channel traffic, for the
+ * benchmarks. The same seed always gives the same corpus.
+ *
+ * As in a real channel, a few nicks do most of the talking and a long tail
+ * rarely speak; words are drawn from a vocabulary with the same kind of
+ * skew. Lines are mostly plain chat of a few words to a couple of dozen,
+ * with some actions, messages addressed to other nicks, links, and the
+ * occasional search and replace command.
+ */
+class Corpus {
+    static class Line {
+        final String nick, prefix, body;
+        final boolean ctcp;
+
+        Line(String nick, String prefix, String body, boolean ctcp) {
+            this.nick = nick;
+            this.prefix = prefix;
+            this.body = body;
+            this.ctcp = ctcp;
+        }
+    }
+
+    private static final String[] COMMON = {
+        "the", "to", "i", "a", "it", "is", "and", "that", "you", "of", "in",
+        "for", "on", "but", "just", "so", "have", "not", "with", "be", "this",
+        "was", "if", "what", "like", "yeah", "no", "do", "can", "think", "at",
+        "my", "are", "or", "one", "there", "all", "get", "lol", "they", "its",
+        "would", "about", "know", "out", "then", "because", "thing", "now",
+        "some", "more", "when", "how", "still", "really", "why", "build",
+        "kernel", "patch", "compiler", "server", "broken", "works", "config",
+        "rust", "java", "regex", "thread", "memory", "bug", "commit", "merge"
+    };
+
+    private static final String[] SYLLABLES = {
+        "ka", "ro", "mi", "an", "tel", "jo", "ser", "vi", "na", "lu", "ex",
+        "zo", "pe", "dri", "ash", "ny", "qu", "bel", "or", "im"
+    };
+
+    private static final String[] HOSTS = {
+        "github.com", "example.org", "lwn.net", "en.wikipedia.org", "paste.rs"
+    };
+
+    private final Random random;
+    private final String[] nicks, words;
+    private final double[] nickWeights, wordWeights;
+
+    Corpus(long seed, int nicks, int words) {
+        this.random = new Random(seed);
+        this.nicks = new String[nicks];
+        this.words = new String[words];
+
+        for (int i = 0; i < nicks; i++) {
+            this.nicks[i] = this.name(2 + this.random.nextInt(3)) + (i % 7 == 0 ? "_" : "");
+        }
+
+        for (int i = 0; i < words; i++) {
+            this.words[i] = i < COMMON.length ? COMMON[i] : this.name(1 + this.random.nextInt(4));
+        }
+
+        this.nickWeights = zipf(nicks, 1.1);
+        this.wordWeights = zipf(words, 1.0);
+    }
+
+    // a corpus the size of a busy channel's vocabulary and population.
+    Corpus(long seed) {
+        this(seed, 200, 20000);
+    }
+
+    private String name(int syllables) {
+        StringBuilder ret;
+
+        ret = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            ret.append(SYLLABLES[this.random.nextInt(SYLLABLES.length)]);
+        }
+
+        return ret.toString();
+    }
+
+    // cumulative weights of a zipf distribution over n ranks.
+    private static double[] zipf(int n, double exponent) {
+        double[] ret;
+        double total;
+
+        ret = new double[n];
+        total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            ret[i] = total;
+        }
+
+        for (int i = 0; i < n; i++) {
+            ret[i] /= total;
+        }
+
+        return ret;
+    }
+
+    private int sample(double[] weights) {
+        int ret;
+
+        ret = Arrays.binarySearch(weights, this.random.nextDouble());
+        return Math.min(ret < 0 ? -ret - 1 : ret, weights.length - 1);
+    }
+
+    // the nick with the given activity rank, with zero being the busiest.
+    String nick(int rank) {
+        return this.nicks[rank];
+    }
+
+    Line next() {
+        StringBuilder body;
+        String nick, word;
+        int roll, length;
+
+        nick = this.nicks[this.sample(this.nickWeights)];
+        roll = this.random.nextInt(100);
+
+        if (roll == 0) {
+            word = this.words[this.sample(this.wordWeights)];
+            return new Line(nick, "s/" + word + "/" + this.words[this.sample(this.wordWeights)] + "/", "", false);
+        }
+
+        body = new StringBuilder();
+
+        if (roll < 12) {
+            body.append(this.nicks[this.sample(this.nickWeights)]).append(": ");
+        }
+
+        length = 2 + (int) Math.abs(this.random.nextGaussian() * 8);
+        for (int i = 0; i < length; i++) {
+            if (i != 0) {
+                body.append(' ');
+            }
+
+            body.append(this.words[this.sample(this.wordWeights)]);
+        }
+
+        if (roll >= 12 && roll < 15) {
+            body.append(" https://").append(HOSTS[this.random.nextInt(HOSTS.length)])
+                .append('/').append(this.name(3)).append('/').append(this.random.nextInt(100000));
+        }
+
+        return new Line(nick, "", body.toString(), roll >= 95);
+    }
+
+    List<Line> lines(int count) {
+        List<Line> ret;
+
+        ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(this.next());
+        }
+
+        return ret;
+    }
+
+    // a history of count lines for the history benchmarks, with a line for
+    // them to find planted half way back, from the busiest nick.
+    List<Line> haystack(int count) {
+        List<Line> ret;
+
+        ret = this.lines(count);
+        ret.set(count / 2, new Line(this.nick(0), "", "that was the needle in the haystack", false));
+
+        return ret;
+    }
+
+    static void push(MessageLog log, Line line) {
+        log.pushMsg(line.nick, line.prefix, line.body, line.ctcp);
+    }
+}
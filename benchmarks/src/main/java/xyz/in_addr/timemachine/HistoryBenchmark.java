@@ -0,0 +1,149 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of searching the history for recall commands. The line to be found is
+ * planted half way back through the history, from the busiest nick; misses
+ * search for something which isn't there at all. Exact targets search that
+ * nick's lines, prefix targets those of every nick starting with the same
+ * two letters. Search and replace, which changes the history, is measured
+ * separately by SearchReplaceBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class HistoryBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"exact", "prefix", "all"})
+    public String target;
+
+    @Param({"hit", "miss"})
+    public String outcome;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    @Param({"false", "true"})
+    public boolean trigrams;
+
+    private MessageLog log;
+    private String who, regex, unique;
+    private boolean exact;
+    private int nickLines;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Corpus corpus;
+        List<Corpus.Line> lines;
+        Set<String> others;
+        String nick;
+
+        corpus = new Corpus(42);
+        nick = corpus.nick(0);
+        lines = corpus.haystack(this.size);
+
+        this.log = new MessageLog(new HistoryOptions().setLimit(this.size).setOffHeap(this.offHeap).setTrigrams(this.trigrams),
+                                  null, null);
+        this.log.lock.lock();
+        try {
+            for (Corpus.Line line: lines) {
+                Corpus.push(this.log, line);
+            }
+        } finally {
+            this.log.lock.unlock();
+        }
+
+        this.exact = this.target.equals("exact");
+        this.who = this.exact ? nick : this.target.equals("all") ? null : nick.substring(0, 2);
+        this.regex = this.outcome.equals("hit") ? "needle" : "haystacks";
+
+        // a positional recall only takes a prefix which is of a single nick,
+        // so the shortest prefix of the busiest nick which is of no other.
+        others = new HashSet<>();
+        this.nickLines = 0;
+        for (Corpus.Line line: lines) {
+            if (fold(line.nick).equals(fold(nick))) {
+                this.nickLines++;
+            } else {
+                others.add(fold(line.nick));
+            }
+        }
+
+        this.unique = null;
+        for (int i = 1; i < nick.length() && this.unique == null; i++) {
+            if (!startsWith(others, fold(nick.substring(0, i)))) {
+                this.unique = nick.substring(0, i);
+            }
+        }
+
+        if (this.unique == null) {
+            throw new IllegalStateException("no prefix of " + nick + " is of that nick alone");
+        }
+    }
+
+    private static String fold(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean startsWith(Set<String> nicks, String prefix) {
+        for (String nick: nicks) {
+            if (nick.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Benchmark
+    public String recall() {
+        this.log.lock.lock();
+        try {
+            return this.log.recall(this.who, this.exact, this.regex, 0).get();
+        } finally {
+            this.log.lock.unlock();
+        }
+    }
+
+    // halfway back through the channel, or through the busiest nick's lines
+    // for an exact or prefix target, which should cost the same at any
+    // size.
+    @Benchmark
+    public String recallPosition() {
+        this.log.lock.lock();
+        try {
+            if (this.target.equals("all")) {
+                return this.log.recallPosition(null, true, this.size / 2).get();
+            }
+
+            return this.log.recallPosition(this.exact ? this.who : this.unique, true, Math.max(1, this.nickLines / 2)).get();
+        } finally {
+            this.log.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.re2j.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of compiling a user's pattern (uncached, and through the cache), of
+ * matching it against a line, and of replacing in a line. The patterns
+ * matched include ones with and without literal text which every match must
+ * contain, which lets most lines be ruled out without running the regex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternMatcherBenchmark {
+    private static final int LINES = 1024;
+
+    private static final String[] PATTERNS = {
+        "teh", "colou?r", "kernel", "fo+ba[rz]", "(\\w+) (\\w+)", "^i ",
+        "\\bthe\\b", "[0-9]+", "https?://\\S+", "(?i)java", ".*", "a|b|c"
+    };
+
+    @Param({"(patch|commit)e?s?", "t?eh+", "kernel patch", "colou?r"})
+    public String pattern;
+
+    private PatternMatcher pm;
+    private byte[][] bodies;
+    private String[] texts;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<Corpus.Line> lines;
+
+        lines = new Corpus(7).lines(LINES);
+        this.bodies = new byte[LINES][];
+        this.texts = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            this.texts[i] = lines.get(i).body;
+            this.bodies[i] = this.texts[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        this.pm = PatternMatcher.build(this.pattern);
+        this.next = 0;
+    }
+
+    private int next() {
+        return this.next++;
+    }
+
+    @Benchmark
+    public Pattern compile() {
+        return Pattern.compile(PATTERNS[this.next() % PATTERNS.length]);
+    }
+
+    @Benchmark
+    public PatternMatcher cachedBuild() {
+        return PatternMatcher.build(PATTERNS[this.next() % PATTERNS.length]);
+    }
+
+    @Benchmark
+    public boolean match() {
+        return this.pm.matches(this.bodies[this.next() & (LINES - 1)]);
+    }
+
+    @Benchmark
+    public String replace() {
+        return this.pm.replaceAll(this.texts[this.next() & (LINES - 1)], "diff");
+    }
+}
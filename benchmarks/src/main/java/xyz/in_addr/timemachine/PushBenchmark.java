@@ -0,0 +1,79 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording a line in a full history, which always evicts the
+ * oldest line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class PushBenchmark {
+    private static final int LINES = 4096;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    @Param({"false", "true"})
+    public boolean trigrams;
+
+    private MessageLog log;
+    private Corpus.Line[] lines;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Corpus corpus;
+        List<Corpus.Line> more;
+
+        corpus = new Corpus(42);
+
+        this.log = new MessageLog(new HistoryOptions().setLimit(this.size).setOffHeap(this.offHeap).setTrigrams(this.trigrams),
+                                  null, null);
+        this.log.lock.lock();
+        try {
+            for (int i = 0; i < this.size; i++) {
+                Corpus.push(this.log, corpus.next());
+            }
+        } finally {
+            this.log.lock.unlock();
+        }
+
+        more = corpus.lines(LINES);
+        this.lines = more.toArray(new Corpus.Line[LINES]);
+        this.next = 0;
+    }
+
+    @Benchmark
+    public void push() {
+        this.log.lock.lock();
+        try {
+            Corpus.push(this.log, this.lines[this.next++ & (LINES - 1)]);
+        } finally {
+            this.log.lock.unlock();
+        }
+    }
+}
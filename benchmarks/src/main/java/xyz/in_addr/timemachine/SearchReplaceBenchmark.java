@@ -0,0 +1,95 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a search and replace command: finding the line, revising it, and
+ * formatting the reply, over the same history as HistoryBenchmark.
+ *
+ * Revising a line changes the history, bumping its revision counter and
+ * holding a reference to its nick, so the history is rebuilt before every
+ * invocation. That makes the larger histories too slow to measure, so this
+ * stops at a hundred thousand lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class SearchReplaceBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"exact", "prefix", "all"})
+    public String target;
+
+    @Param({"hit", "miss"})
+    public String outcome;
+
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    @Param({"false", "true"})
+    public boolean trigrams;
+
+    private List<Corpus.Line> lines;
+    private MessageLog log;
+    private String who, regex;
+    private boolean exact;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Corpus corpus;
+        String nick;
+
+        corpus = new Corpus(42);
+        nick = corpus.nick(0);
+        this.lines = corpus.haystack(this.size);
+
+        this.exact = this.target.equals("exact");
+        this.who = this.exact ? nick : this.target.equals("all") ? null : nick.substring(0, 2);
+        this.regex = this.outcome.equals("hit") ? "needle" : "haystacks";
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        this.log = new MessageLog(new HistoryOptions().setLimit(this.size).setOffHeap(this.offHeap).setTrigrams(this.trigrams),
+                                  null, null);
+        this.log.lock.lock();
+        try {
+            for (Corpus.Line line: this.lines) {
+                Corpus.push(this.log, line);
+            }
+        } finally {
+            this.log.lock.unlock();
+        }
+    }
+
+    @Benchmark
+    public Supplier<String> searchReplace() {
+        this.log.lock.lock();
+        try {
+            return this.log.searchReplace(this.who, this.exact, this.regex, "pin", 0, false);
+        } finally {
+            this.log.lock.unlock();
+        }
+    }
+}
@@ -2,8 +2,8 @@
 
 package xyz.in_addr.timemachine;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import java.util.regex.Pattern;
 
@@ -27,14 +27,20 @@ public class AdminListener extends ListenerAdapter {
     // emulate the sound of the tardis when quitting
     private final String PART_MESSAGE = "*hooreeerwww... hooreeerwww... veeoom-eeom...*";
 
-    private final Set<String> ignorelist;
+    private final IgnoreList ignorelist;
     private final List<Pattern> ownerlist;
     private final String initmodes;
+    private final TimeMachine machine;
+    private final PooledListenerManager listeners;
 
-    public AdminListener(Set<String> ignores, List<Pattern> owners, String modes) {
+    // machine and listeners are only used to report on the bot's health.
+    public AdminListener(IgnoreList ignores, List<Pattern> owners, String modes, TimeMachine machine,
+                         PooledListenerManager listeners) {
         this.ignorelist = ignores;
         this.ownerlist = owners;
         this.initmodes = modes;
+        this.machine = machine;
+        this.listeners = listeners;
 
         log.info("Admin listener initialised");
     }
@@ -63,6 +69,13 @@ public class AdminListener extends ListenerAdapter {
             return;
         }
 
+        if (split[0].equals("stats")) {
+            for (String line: this.stats(split.length > 1 ? split[1] : null)) {
+                out.message(event.getUser().getNick(), line);
+            }
+            return;
+        }
+
         if (split.length == 1)
             return;
 
@@ -111,6 +124,82 @@ public class AdminListener extends ListenerAdapter {
         return;
     }
 
+    // figures on the whole bot, or on one channel. these all come from
+    // counters kept up to date as the bot runs, so that asking for them
+    // never has to wait on or walk any channel's history.
+    private List<String> stats(String channel) {
+        List<String> ret;
+        MessageLog history;
+        long lines, bytes, limit;
+        int channels;
+
+        ret = new ArrayList<>();
+
+        if (channel != null) {
+            history = this.machine.history(channel);
+            if (history == null) {
+                ret.add("No history for " + channel);
+                return ret;
+            }
+
+            ret.add(String.format("%s: %d lines (limit %d), %s, %d commands/min, recent commands reached back %d lines",
+                                  channel, history.lines(), history.limit(), size(history.bytes()),
+                                  history.commandsPerMinute(), history.reach()));
+        } else {
+            channels = 0;
+            lines = 0;
+            bytes = 0;
+            for (String c: this.machine.channels()) {
+                history = this.machine.history(c);
+                if (history != null) {
+                    channels++;
+                    lines += history.lines();
+                    bytes += history.bytes();
+                }
+            }
+
+            limit = this.machine.memoryLimit();
+            ret.add(String.format("%d channels: %d lines, %s%s", channels, lines, size(bytes),
+                                  limit > 0 ? " of " + size(limit) : ""));
+        }
+
+        ret.add(String.format("%d commands/min, latency median %s, p99 %s; %s of searches matched",
+                              Metrics.commands.perMinute(), duration(Metrics.command.quantile(0.5)),
+                              duration(Metrics.command.quantile(0.99)),
+                              percent(Metrics.hits.sum(), Metrics.misses.sum())));
+        ret.add(String.format("Pattern cache %s hits; event queue %d (max %d)",
+                              percent(PatternMatcher.cacheHits(), PatternMatcher.cacheMisses()),
+                              this.listeners.queueDepth(), this.listeners.maxQueueDepth()));
+
+        return ret;
+    }
+
+    private static String size(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KiB", bytes / 1024.0);
+        } else {
+            return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+        }
+    }
+
+    private static String duration(long nanos) {
+        if (nanos < 1000000) {
+            return (nanos / 1000) + "us";
+        } else {
+            return String.format("%.1fms", nanos / 1000000.0);
+        }
+    }
+
+    private static String percent(long yes, long no) {
+        if (yes + no == 0) {
+            return "n/a";
+        }
+
+        return (100 * yes / (yes + no)) + "%";
+    }
+
     private boolean isOwner(String hostmask) {
         for (Pattern owner: ownerlist) {
             if (owner.matcher(hostmask).matches())
@@ -139,7 +228,7 @@ public class AdminListener extends ListenerAdapter {
     public void onMessage(MessageEvent event) {
         String[] split;
 
-        if (this.ignorelist.contains(event.getUser().getNick()))
+        if (this.ignorelist.ignores(event.getUser().getNick(), event.getUserHostmask().getHostmask()))
             return;
 
         split = event.getMessage().split("[:;,]\\s+", 2);
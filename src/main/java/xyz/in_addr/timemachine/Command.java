@@ -0,0 +1,261 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.regex.Pattern;
+
+/**
+ * A recall (p//), positional recall (p-N or p+N) or search and replace (s///)
+ * command, as parsed from the start of a message.
+ *
+ * Commands are parsed in a single pass over the message, which never goes
+ * back over what it has already read, but accept exactly what the regexes
+ * below accept and split it up the same way.
+ */
+class Command {
+    // substitution and recall commands. the regexen here are based on ones
+    // originally shared by puck meerburg, which were subsequently hacked on for
+    // timemachine. i spent an inordinate amount of time on debacktrackifying
+    // them for compatibility with google's re2j library, however puck still
+    // writes better regexes than i do, so these are based on more recent
+    // versions of her regexes which support arbitrary input delimiters.
+    //
+    // fun fact: matching regex with regex is hard.
+    //
+    // these are no longer used to parse commands, but remain the definition
+    // of what the parser accepts, and what it is benchmarked against.
+    static final Pattern SED_MATCH = Pattern.compile("^[sS](\\W)((?:\\\\\\1|(?:(?!\\1).))*)(?!\\\\)\\1((?:\\\\\\1|\\\\\\\\|(?:(?!\\1).))*)(?:\\1([^ ~]*)((?:~[0-9]+)?))?");
+    static final Pattern PRINT_MATCH = Pattern.compile("^[pP](\\W)((?:\\\\\\1|(?:(?!\\1).))*)(?!\\\\)\\1([^ ~]*)((?:~[0-9]+)?)");
+
+    // query and replacement have escaped delimiters unescaped, and
+    // replacement is null for recall commands. target and offset are empty
+    // if not given, other than for a search and replace command with no
+    // delimiter after the replacement, in which case they are null. offset
+    // includes its leading tilde, other than for a positional recall, which
+    // has no query, and whose offset is the signed position. end is where
+    // the command ends in the message.
+    final String query, replacement, target, offset;
+    final int end;
+
+    private Command(String query, String replacement, String target, String offset, int end) {
+        this.query = query;
+        this.replacement = replacement;
+        this.target = target;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    // parse a recall command, or return null if the message doesn't start
+    // with one.
+    static Command parseRecall(String message) {
+        String delim;
+        int start, close, target, offset, end;
+
+        delim = delimiter(message, 'p', 'P');
+        if (delim == null) {
+            return null;
+        }
+
+        start = 1 + delim.length();
+        close = closing(message, start, delim);
+        if (close < 0) {
+            return null;
+        }
+
+        target = close + delim.length();
+        offset = target(message, target);
+        end = offset(message, offset);
+
+        return new Command(unescape(message.substring(start, close), delim), null,
+                           message.substring(target, offset), message.substring(offset, end), end);
+    }
+
+    // parse a positional recall command, or return null if the message
+    // doesn't start with one. the position is followed directly by the
+    // target, if any, e.g. p-3alice. a message which is also a recall
+    // command with + or - as its delimiter, e.g. p-3-alice, is taken to be
+    // that instead, and should be parsed as one first.
+    static Command parsePosition(String message) {
+        int offset, end;
+
+        if (message.length() < 3 || (message.charAt(0) != 'p' && message.charAt(0) != 'P')
+            || (message.charAt(1) != '-' && message.charAt(1) != '+')) {
+            return null;
+        }
+
+        offset = 2;
+        while (offset < message.length() && message.charAt(offset) >= '0' && message.charAt(offset) <= '9') {
+            offset++;
+        }
+
+        if (offset == 2) {
+            return null;
+        }
+
+        end = target(message, offset);
+
+        return new Command(null, null, message.substring(offset, end), message.substring(1, offset), end);
+    }
+
+    // parse a search and replace command, or return null if the message
+    // doesn't start with one.
+    static Command parseSearchReplace(String message) {
+        String delim, target, offset;
+        int start, close, replacement, replaced, after, end;
+
+        delim = delimiter(message, 's', 'S');
+        if (delim == null) {
+            return null;
+        }
+
+        start = 1 + delim.length();
+        close = closing(message, start, delim);
+        if (close < 0) {
+            return null;
+        }
+
+        replacement = close + delim.length();
+        replaced = replacement(message, replacement, delim);
+        end = replaced;
+        target = null;
+        offset = null;
+
+        // the target and offset only come after a third delimiter.
+        if (message.startsWith(delim, replaced)) {
+            after = replaced + delim.length();
+            end = target(message, after);
+            target = message.substring(after, end);
+            after = end;
+            end = offset(message, after);
+            offset = message.substring(after, end);
+        }
+
+        return new Command(unescape(message.substring(start, close), delim),
+                           unescape(message.substring(replacement, replaced), delim), target, offset, end);
+    }
+
+    // the delimiter after the command letter at the start of the message, or
+    // null if there isn't a command letter, or it isn't followed by a
+    // character which may be a delimiter. any character other than a word
+    // character may be a delimiter, except for backslashes and spaces.
+    private static String delimiter(String message, char lower, char upper) {
+        int c;
+
+        if (message.length() < 2 || (message.charAt(0) != lower && message.charAt(0) != upper)) {
+            return null;
+        }
+
+        c = message.codePointAt(1);
+        if (isWord(c) || c == '\\' || c == ' ') {
+            return null;
+        }
+
+        return message.substring(1, 1 + Character.charCount(c));
+    }
+
+    // the offset of the delimiter closing the pattern which starts at the
+    // given offset, or -1 if the pattern isn't closed. an escaped delimiter
+    // doesn't close the pattern, unless there is no other way for it to be
+    // closed, in which case the last one does, with its backslash being
+    // taken as part of the pattern.
+    private static int closing(String message, int i, String delim) {
+        int c, escaped;
+
+        escaped = -1;
+        while (i < message.length()) {
+            if (message.charAt(i) == '\\' && message.startsWith(delim, i + 1)) {
+                escaped = i + 1;
+                i += 1 + delim.length();
+                continue;
+            }
+
+            if (message.startsWith(delim, i)) {
+                return i;
+            }
+
+            c = message.codePointAt(i);
+            if (isLineTerminator(c)) {
+                break;
+            }
+
+            i += Character.charCount(c);
+        }
+
+        return escaped;
+    }
+
+    // the offset of the end of the replacement which starts at the given
+    // offset. escaped delimiters and backslashes are kept in the
+    // replacement.
+    private static int replacement(String message, int i, String delim) {
+        int c;
+
+        while (i < message.length()) {
+            if (message.charAt(i) == '\\') {
+                if (message.startsWith(delim, i + 1)) {
+                    i += 1 + delim.length();
+                    continue;
+                }
+
+                if (i + 1 < message.length() && message.charAt(i + 1) == '\\') {
+                    i += 2;
+                    continue;
+                }
+            }
+
+            if (message.startsWith(delim, i)) {
+                break;
+            }
+
+            c = message.codePointAt(i);
+            if (isLineTerminator(c)) {
+                break;
+            }
+
+            i += Character.charCount(c);
+        }
+
+        return i;
+    }
+
+    // the offset of the end of the target which starts at the given offset.
+    private static int target(String message, int i) {
+        while (i < message.length() && message.charAt(i) != ' ' && message.charAt(i) != '~') {
+            i++;
+        }
+
+        return i;
+    }
+
+    // the offset of the end of the offset, if any, which starts at the given
+    // offset.
+    private static int offset(String message, int i) {
+        int j;
+
+        if (i >= message.length() || message.charAt(i) != '~') {
+            return i;
+        }
+
+        j = i + 1;
+        while (j < message.length() && message.charAt(j) >= '0' && message.charAt(j) <= '9') {
+            j++;
+        }
+
+        // a tilde with no digits after it isn't an offset.
+        return j == i + 1 ? i : j;
+    }
+
+    private static String unescape(String s, String delim) {
+        return s.indexOf('\\') < 0 ? s : s.replace("\\" + delim, delim);
+    }
+
+    // word characters as matched by \w.
+    private static boolean isWord(int c) {
+        return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    // characters which . doesn't match.
+    private static boolean isLineTerminator(int c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
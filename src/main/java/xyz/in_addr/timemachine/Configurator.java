@@ -4,11 +4,9 @@ package xyz.in_addr.timemachine;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import javax.net.ssl.SSLSocketFactory;
@@ -25,19 +23,17 @@ import org.pircbotx.delay.BinaryBackoffDelay;
 public class Configurator {
     public static class TMConfig {
         public Configuration.Builder config;
-        public int recalllimit;
+        public HistoryOptions history;
+        public int handoffport, takeoverport, workers, eventqueue, replyage;
         public List<Pattern> ownerlist;
-        public Set<String> ignorelist;
-        public String initialmodes, logchannel;
+        public IgnoreList ignorelist;
+        public String initialmodes, logchannel, handofftoken;
 
-        TMConfig(Configuration.Builder builder, int limit, Set<String> ignores,
-                 List<Pattern> owners, String modes, String logchannel) {
+        // the remaining fields are set by name once the flags are parsed,
+        // as there are too many for a constructor to take them safely.
+        TMConfig(Configuration.Builder builder, HistoryOptions history) {
             this.config = builder;
-            this.recalllimit = limit;
-            this.ignorelist = ignores;
-            this.ownerlist = owners;
-            this.initialmodes = modes;
-            this.logchannel = logchannel;
+            this.history = history;
         }
     }
 
@@ -74,26 +70,32 @@ public class Configurator {
     public static TMConfig loadConfig(String[] args) {
         Configuration.Builder builder;
         String host, nick, realname, sourcehost, ircname, nickserv, spass,
-            env, modes, logchannel;
+            env, modes, logchannel, journal, tokenenv, token;
         String[] split;
-        int port, recall, opt, ret;
-        boolean ssl, sslnoverify;
+        int port, recall, memory, parallel, handoff, takeover, workers, queue, replyage, opt;
+        boolean ssl, sslnoverify, offheap, trigrams;
         List<String> autojoin;
         List<Pattern> owners;
-        Set<String> ignores;
+        IgnoreList ignores;
         GetOpt options;
         InetAddress saddr;
         Pattern pat;
+        ScanBudget budget;
+        HistoryOptions history;
+        TMConfig ret;
 
-        host = null; port = 0; ssl = false; sslnoverify = false; sourcehost = null;
-        recall = 0; nick = null; realname = null; ircname = null; modes = null;
+        host = null; port = 0; ssl = false; sslnoverify = false; offheap = false; trigrams = false; sourcehost = null;
+        recall = 0; memory = 0; parallel = 0; handoff = 0; takeover = 0; nick = null; realname = null; ircname = null; modes = null;
         nickserv = null; spass = null; saddr = null; pat = null; logchannel = null;
+        journal = null; tokenenv = null; token = null;
+        workers = Runtime.getRuntime().availableProcessors(); queue = 1024; replyage = 30;
+        budget = ScanBudget.UNLIMITED;
         /* needed for thread safety */
-        ignores = Collections.synchronizedSet(new TreeSet<>(String.CASE_INSENSITIVE_ORDER));
+        ignores = new IgnoreList();
         owners = new ArrayList<>();
         autojoin = new ArrayList<>();
 
-        options = new GetOpt(args, ":hH:p:sQS:n:i:r:N:k:m:l:L:I:O:A:", false);
+        options = new GetOpt(args, ":hH:p:sQS:n:i:r:N:k:m:l:M:otb:P:J:x:X:T:w:q:a:L:I:O:A:", false);
 
         while ((opt = options.getOpt()) != -1) {
             switch (opt) {
@@ -136,6 +138,43 @@ public class Configurator {
             case 'l':
                 recall = getInt(options.optarg());
                 break;
+            case 'M':
+                memory = getInt(options.optarg());
+                break;
+            case 'o':
+                offheap = true;
+                break;
+            case 't':
+                trigrams = true;
+                break;
+            case 'b':
+                budget = ScanBudget.parse(options.optarg());
+                exitIf(budget == null, "bad search budget: " + options.optarg());
+                break;
+            case 'P':
+                parallel = getInt(options.optarg());
+                break;
+            case 'J':
+                journal = options.optarg();
+                break;
+            case 'x':
+                handoff = getInt(options.optarg());
+                break;
+            case 'X':
+                takeover = getInt(options.optarg());
+                break;
+            case 'T':
+                tokenenv = options.optarg();
+                break;
+            case 'w':
+                workers = getInt(options.optarg());
+                break;
+            case 'q':
+                queue = getInt(options.optarg());
+                break;
+            case 'a':
+                replyage = getInt(options.optarg());
+                break;
             case 'L':
                 logchannel = options.optarg();
                 break;
@@ -178,6 +217,11 @@ public class Configurator {
         exitIf(realname == null, "missing bot realname");
         exitIf(recall == 0, "missing message history limit");
         exitIf(!ssl && sslnoverify, "cannot specify -Q without -s");
+        exitIf(takeover != 0 && journal != null, "cannot specify -X with -J");
+        exitIf((handoff != 0 || takeover != 0) && tokenenv == null, "cannot specify -x or -X without -T");
+        exitIf(workers <= 0, "number of event workers must be positive");
+        exitIf(queue <= 0, "event queue length must be positive");
+        exitIf(replyage <= 0, "maximum reply age must be positive");
 
         builder = configBuilderDefaults();
         builder.addServer(host, port)
@@ -215,6 +259,11 @@ public class Configurator {
             builder.setServerPassword(env);
         }
 
+        if (tokenenv != null) {
+            token = System.getenv(tokenenv);
+            exitIf(token == null || token.isEmpty(), "could not find environment variable " + tokenenv);
+        }
+
         for (String channel: autojoin) {
             if (channel.contains(":")) {
                 split = channel.split(":");
@@ -225,7 +274,28 @@ public class Configurator {
             }
         }
 
-        return new TMConfig(builder, recall, ignores, owners, modes, logchannel);
+        history = new HistoryOptions()
+            .setLimit(recall)
+            .setMemory(memory * 1024L * 1024L)
+            .setOffHeap(offheap)
+            .setTrigrams(trigrams)
+            .setBudget(budget)
+            .setParallel(parallel)
+            .setJournal(journal == null ? null : Paths.get(journal));
+
+        ret = new TMConfig(builder, history);
+        ret.handoffport = handoff;
+        ret.takeoverport = takeover;
+        ret.workers = workers;
+        ret.eventqueue = queue;
+        ret.replyage = replyage;
+        ret.ignorelist = ignores;
+        ret.ownerlist = owners;
+        ret.initialmodes = modes;
+        ret.logchannel = logchannel;
+        ret.handofftoken = token;
+
+        return ret;
     }
 
     private static void printUsage() {
@@ -243,7 +313,29 @@ public class Configurator {
             "        -k env    Environment variable containing server password\n" +
             "        -m modes  Mode string to set upon connect\n\n" +
             "        -l hist   Number of lines of history to record\n" +
-            "        -I nick   Add nick to ignore list (may be specified more than once)\n" +
+            "        -M mib    Limit the memory used by history across all channels to about this many\n" +
+            "                  megabytes, by recording fewer lines in quiet channels\n" +
+            "        -o        Keep message history outside the Java heap, for very large histories\n" +
+            "        -t        Index message history by trigram, so that searches for text found in few\n" +
+            "                  lines needn't scan the whole history, at some cost in memory\n" +
+            "        -b budget Limit the lines, bytes and milliseconds a single command may spend\n" +
+            "                  searching history, as lines:bytes:millis (empty or zero fields are\n" +
+            "                  unlimited, e.g. 100000::250)\n" +
+            "        -P lines  Search history in parallel when a search covers at least this many lines\n" +
+            "        -J dir    Persist channel history in journal files under dir, and restore it\n" +
+            "                  from there on startup\n" +
+            "        -x port   Listen on loopback port for a new instance to take over history, and\n" +
+            "                  quit once it has\n" +
+            "        -X port   Take over history from a running instance listening on loopback port\n" +
+            "                  before connecting (not with -J)\n" +
+            "        -T env    Environment variable containing a secret token which both instances\n" +
+            "                  must share for a history handoff (required with -x and -X)\n" +
+            "        -w n      Number of threads handling events (default: one per CPU)\n" +
+            "        -q n      Number of events each event thread may have waiting (default: 1024)\n" +
+            "        -a secs   Drop replies which could not be sent within this many seconds\n" +
+            "                  (default: 30)\n" +
+            "        -I nick   Add nick, or hostmask glob such as *!*@host, to ignore list (may be\n" +
+            "                  specified more than once)\n" +
             "        -O regex  Add hostmask regex to owner list (may be specified more than once)\n" +
             "        -A chan   Add channel to autojoin list (may be specified more than once;\n" +
             "                  channel key may be provided by separating channel and key with colon,\n" +
@@ -0,0 +1,210 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the in-memory history of a running bot over to a newly started one,
+ * so that an upgrade doesn't lose any recall. The running bot listens on a
+ * loopback port; the new bot connects to it before connecting to IRC, and
+ * proves that it may have the history by sending
+ *
+ *   int magic, utf token
+ *
+ * where the token is a secret shared by both instances' configuration. Any
+ * other local user could otherwise connect first, read every channel's
+ * history, and make the old bot quit. A client which doesn't send the right
+ * token in time is disconnected, and the old bot carries on listening. Once
+ * authenticated, the new bot reads every channel's history as a stream of:
+ *
+ *   int magic
+ *   for each channel: byte 1, utf channel, int count, count records
+ *   byte 0
+ *
+ * where each record is (int seq, int id, int revision, byte flags, utf nick,
+ * utf prefix, utf body). The new bot acknowledges with a single byte once it
+ * has read everything, after which the old bot leaves IRC.
+ */
+class Handoff {
+    private static final Logger log = LoggerFactory.getLogger(Handoff.class);
+
+    private static final int MAGIC = 0x544d4831; // "TMH1"
+    private static final byte FLAG_CTCP = 1;
+
+    // how long a client has to send its token once connected.
+    private static final int AUTH_TIMEOUT_MILLIS = 10000;
+
+    // listen on the given loopback port in the background, until a client
+    // presenting token has been handed the history, after which done is
+    // run.
+    static void serve(int port, String token, TimeMachine machine, Runnable done) throws IOException {
+        ServerSocket server;
+        Thread thread;
+
+        server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+
+        thread = new Thread(() -> {
+            try (ServerSocket s = server) {
+                while (!handoff(s, token, machine)) {
+                    log.info("Still listening for history handoff on port {}", port);
+                }
+            } catch (IOException ioe) {
+                log.error("Stopped listening for history handoff: {}", ioe.toString());
+                return;
+            }
+
+            done.run();
+        }, "timemachine-handoff");
+
+        thread.setDaemon(true);
+        thread.start();
+
+        log.info("Listening for history handoff on port {}", port);
+    }
+
+    // accept one client and, if it authenticates, hand the history to it.
+    // returns whether the history was handed off. only a failure of the
+    // listening socket itself is thrown.
+    private static boolean handoff(ServerSocket server, String token, TimeMachine machine) throws IOException {
+        Socket sock;
+
+        sock = server.accept();
+
+        try (Socket s = sock) {
+            s.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+            if (!authenticate(s, token)) {
+                log.warn("Rejected history handoff request from {} without a valid token", s.getRemoteSocketAddress());
+                return false;
+            }
+            s.setSoTimeout(0);
+
+            log.info("Handing off history to {}", s.getRemoteSocketAddress());
+
+            send(machine, s);
+            log.info("History handoff complete");
+            return true;
+        } catch (IOException ioe) {
+            log.error("History handoff failed: {}", ioe.toString());
+            return false;
+        }
+    }
+
+    private static boolean authenticate(Socket sock, String token) throws IOException {
+        DataInputStream in;
+        byte[] given;
+
+        in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+
+        if (in.readInt() != MAGIC) {
+            return false;
+        }
+
+        given = in.readUTF().getBytes(StandardCharsets.UTF_8);
+
+        // compared in constant time, so as not to give the token away.
+        return MessageDigest.isEqual(given, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(TimeMachine machine, Socket sock) throws IOException {
+        DataOutputStream out;
+        List<HistoryRecord> records;
+
+        out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+        out.writeInt(MAGIC);
+
+        for (String channel: machine.channels()) {
+            records = machine.snapshot(channel);
+
+            out.writeByte(1);
+            out.writeUTF(channel);
+            out.writeInt(records.size());
+
+            for (HistoryRecord r: records) {
+                out.writeInt(r.seq);
+                out.writeInt(r.id);
+                out.writeInt(r.revision);
+                out.writeByte(r.ctcp ? FLAG_CTCP : 0);
+                out.writeUTF(r.nick);
+                out.writeUTF(r.prefix);
+                out.writeUTF(r.body);
+            }
+        }
+
+        out.writeByte(0);
+        out.flush();
+
+        // wait for the other side to confirm that it has everything.
+        if (sock.getInputStream().read() != 1) {
+            throw new IOException("handoff was not acknowledged");
+        }
+    }
+
+    // fetch history from a bot listening on the given loopback port,
+    // presenting token, and load it into machine.
+    static void receive(int port, String token, TimeMachine machine) throws IOException {
+        DataInputStream in;
+        DataOutputStream out;
+        List<HistoryRecord> records;
+        String channel;
+        int count, channels, seq, id, revision;
+        byte flags;
+
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            out.writeInt(MAGIC);
+            out.writeUTF(token);
+            out.flush();
+
+            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("unexpected handoff stream header");
+                }
+            } catch (EOFException eofe) {
+                throw new IOException("handoff refused; check that both instances have the same token");
+            }
+
+            channels = 0;
+            while (in.readByte() != 0) {
+                channel = in.readUTF();
+                count = in.readInt();
+                records = new ArrayList<>(count);
+
+                for (int i = 0; i < count; i++) {
+                    seq = in.readInt();
+                    id = in.readInt();
+                    revision = in.readInt();
+                    flags = in.readByte();
+
+                    records.add(new HistoryRecord(seq, id, revision, in.readUTF(), in.readUTF(),
+                                                  in.readUTF(), (flags & FLAG_CTCP) != 0));
+                }
+
+                machine.restore(channel, records);
+                channels++;
+            }
+
+            out.writeByte(1);
+            out.flush();
+
+            log.info("Received history for {} channels by handoff", channels);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Line store keeping each line as a LogEntry on the heap.
+ */
+class HeapLineStore implements LineStore {
+    private LogEntry[] ring;
+
+    HeapLineStore(int capacity) {
+        this.ring = new LogEntry[capacity];
+    }
+
+    private int slot(int seq) {
+        return Math.floorMod(seq, this.ring.length);
+    }
+
+    @Override
+    public int capacity() {
+        return this.ring.length;
+    }
+
+    @Override
+    public void resize(int capacity, int first, int last) {
+        LogEntry[] newring;
+
+        newring = new LogEntry[capacity];
+
+        for (int seq = first; seq <= last; seq++) {
+            newring[Math.floorMod(seq, newring.length)] = this.ring[this.slot(seq)];
+        }
+
+        this.ring = newring;
+    }
+
+    @Override
+    public void put(int seq, LogEntry entry) {
+        this.ring[this.slot(seq)] = entry;
+    }
+
+    @Override
+    public void remove(int seq) {
+        this.ring[this.slot(seq)] = null;
+    }
+
+    @Override
+    public LogEntry get(int seq) {
+        return this.ring[this.slot(seq)];
+    }
+
+    @Override
+    public int nick(int seq) {
+        return this.get(seq).nick();
+    }
+
+    @Override
+    public int bodyLength(int seq) {
+        return this.get(seq).bodyBytes().length;
+    }
+
+    @Override
+    public int footprint(int seq) {
+        return this.get(seq).footprint();
+    }
+
+    @Override
+    public void revised(int seq, LogEntry entry) {
+        // entry is the stored object itself.
+    }
+
+    @Override
+    public IntPredicate matcher(PatternMatcher pm) {
+        return seq -> {
+            byte[] body = this.get(seq).bodyBytes();
+            return body.length != 0 && pm.matches(body);
+        };
+    }
+}
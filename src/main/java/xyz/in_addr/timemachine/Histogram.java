@@ -0,0 +1,113 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of non-negative values, such as latencies in
+ * nanoseconds. Buckets are on a log scale, with each power of two split into
+ * four, so quantiles are accurate to within about an eighth either way.
+ * Recording a value takes no locks, just a few atomic increments, so it is
+ * cheap enough for the message handling path.
+ */
+class Histogram {
+    // each power of two is split into 1 << SUB_BITS buckets.
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count, sum;
+    private final AtomicLong max;
+
+    Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    private static int bucket(long value) {
+        int exponent;
+
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+
+        exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    // the middle of the range of values falling into a bucket.
+    private static long value(int bucket) {
+        long low, width;
+        int exponent;
+
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        width = 1L << (exponent - SUB_BITS);
+        low = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+
+        return low + width / 2;
+    }
+
+    void record(long value) {
+        this.buckets.incrementAndGet(bucket(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        if (value > this.max.get()) {
+            this.max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long count() {
+        return this.count.sum();
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    double mean() {
+        long n;
+
+        n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    // estimate of the value below which the given fraction of recorded values
+    // fall, or zero if nothing has been recorded.
+    long quantile(double q) {
+        long[] snapshot;
+        long total, seen, rank;
+
+        snapshot = new long[BUCKETS];
+        total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.buckets.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        rank = Math.max(1, (long) Math.ceil(q * total));
+        seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(value(i), this.max.get());
+            }
+        }
+
+        return this.max.get();
+    }
+}
@@ -0,0 +1,100 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.nio.file.Path;
+
+/**
+ * How each channel's message history is kept and searched, set by name with
+ * chained setters in the manner of PircBotX's configuration builder, rather
+ * than passed as a long run of positional ints and booleans.
+ */
+class HistoryOptions {
+    private int limit, parallel;
+    private long memory;
+    private boolean offHeap, trigrams;
+    private ScanBudget budget;
+    private Path journal;
+
+    HistoryOptions() {
+        this.limit = 0;
+        this.parallel = 0;
+        this.memory = 0;
+        this.offHeap = false;
+        this.trigrams = false;
+        this.budget = ScanBudget.UNLIMITED;
+        this.journal = null;
+    }
+
+    // lines of history to keep in each channel.
+    HistoryOptions setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    // search in parallel when a search covers at least this many lines, or
+    // never if zero.
+    HistoryOptions setParallel(int parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    // bytes which history may use across all channels, or zero for no limit
+    // beyond the line limit.
+    HistoryOptions setMemory(long memory) {
+        this.memory = memory;
+        return this;
+    }
+
+    // keep lines outside the java heap.
+    HistoryOptions setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    // index lines by trigram.
+    HistoryOptions setTrigrams(boolean trigrams) {
+        this.trigrams = trigrams;
+        return this;
+    }
+
+    HistoryOptions setBudget(ScanBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    // directory under which history is journalled, or null if it isn't
+    // persisted.
+    HistoryOptions setJournal(Path journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    int limit() {
+        return this.limit;
+    }
+
+    int parallel() {
+        return this.parallel;
+    }
+
+    long memory() {
+        return this.memory;
+    }
+
+    boolean offHeap() {
+        return this.offHeap;
+    }
+
+    boolean trigrams() {
+        return this.trigrams;
+    }
+
+    ScanBudget budget() {
+        return this.budget;
+    }
+
+    Path journal() {
+        return this.journal;
+    }
+}
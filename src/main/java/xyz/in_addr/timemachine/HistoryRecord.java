@@ -0,0 +1,24 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+/**
+ * A single entry of channel history in a form which can be written out and
+ * read back, e.g. by a journal or when handing history over to another
+ * process.
+ */
+class HistoryRecord {
+    final int seq, id, revision;
+    final String nick, prefix, body;
+    final boolean ctcp;
+
+    HistoryRecord(int seq, int id, int revision, String nick, String prefix, String body, boolean ctcp) {
+        this.seq = seq;
+        this.id = id;
+        this.revision = revision;
+        this.nick = nick;
+        this.prefix = prefix;
+        this.body = body;
+        this.ctcp = ctcp;
+    }
+}
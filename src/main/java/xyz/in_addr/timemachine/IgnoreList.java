@@ -0,0 +1,156 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.re2j.Pattern;
+
+/**
+ * The users whose messages the bot ignores. Each entry is either a nick, or,
+ * if it contains any of the characters *?!@, a glob such as *!*@example.com
+ * which is matched against the whole nick!user@host hostmask, with * matching
+ * any run of characters and ? any single character. Both are compared case
+ * insensitively.
+ *
+ * The entries are held in an immutable snapshot, which adding or removing an
+ * entry replaces as a whole, so that checking every message against the list
+ * never takes a lock.
+ */
+final class IgnoreList {
+    private static final class Snapshot {
+        // as given, for the next snapshot to be built from.
+        final Set<String> entries;
+
+        // case-folded nicks, and the globs combined into a single pattern
+        // over the case-folded hostmask, which is null if there are no
+        // globs.
+        final Set<String> nicks;
+        final Pattern masks;
+
+        Snapshot(Set<String> entries) {
+            StringBuilder masks;
+
+            this.entries = Collections.unmodifiableSet(entries);
+            this.nicks = new HashSet<>();
+            masks = new StringBuilder();
+
+            for (String entry: entries) {
+                if (!isMask(entry)) {
+                    this.nicks.add(fold(entry));
+                    continue;
+                }
+
+                if (masks.length() > 0) {
+                    masks.append('|');
+                }
+
+                masks.append("(?:").append(glob(fold(entry))).append(')');
+            }
+
+            this.masks = masks.length() == 0 ? null : Pattern.compile(masks.toString());
+        }
+    }
+
+    private volatile Snapshot snapshot;
+
+    IgnoreList() {
+        this.snapshot = new Snapshot(newSet());
+    }
+
+    private static Set<String> newSet() {
+        return new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    private static String fold(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isMask(String entry) {
+        for (int i = 0; i < entry.length(); i++) {
+            if ("*?!@".indexOf(entry.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // translate a glob into a regex, quoting the runs of text between
+    // wildcards.
+    private static String glob(String mask) {
+        StringBuilder ret;
+        int start;
+        char c;
+
+        ret = new StringBuilder();
+        start = 0;
+        for (int i = 0; i < mask.length(); i++) {
+            c = mask.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+
+            if (i > start) {
+                ret.append(Pattern.quote(mask.substring(start, i)));
+            }
+
+            ret.append(c == '*' ? ".*" : ".");
+            start = i + 1;
+        }
+
+        if (mask.length() > start) {
+            ret.append(Pattern.quote(mask.substring(start)));
+        }
+
+        return ret.toString();
+    }
+
+    // whether messages from the user with the given nick and hostmask are
+    // ignored. hostmask may be null if it isn't known, in which case only
+    // the nick is checked.
+    boolean ignores(String nick, String hostmask) {
+        Snapshot current;
+
+        current = this.snapshot;
+
+        if (current.nicks.contains(fold(nick))) {
+            return true;
+        }
+
+        return current.masks != null && hostmask != null && current.masks.matcher(fold(hostmask)).matches();
+    }
+
+    // adding and removing entries is rare, and only done by owners, so
+    // changes simply rebuild the snapshot under the list's monitor, which
+    // readers never touch.
+    synchronized boolean add(String entry) {
+        Set<String> entries;
+
+        entries = newSet();
+        entries.addAll(this.snapshot.entries);
+        if (!entries.add(entry)) {
+            return false;
+        }
+
+        this.snapshot = new Snapshot(entries);
+        return true;
+    }
+
+    synchronized boolean remove(String entry) {
+        Set<String> entries;
+
+        entries = newSet();
+        entries.addAll(this.snapshot.entries);
+        if (!entries.remove(entry)) {
+            return false;
+        }
+
+        this.snapshot = new Snapshot(entries);
+        return true;
+    }
+}
@@ -0,0 +1,270 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of a single channel's message history, used to rebuild
+ * the history after a restart. The journal is a directory of fixed-size
+ * segment files, each named after the sequence number of its first record,
+ * which are memory mapped and written sequentially. Segments are deleted once
+ * every record in them has dropped out of the channel's history.
+ *
+ * Not safe for concurrent use; callers hold the owning MessageLog's lock.
+ */
+class Journal {
+    private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+    private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int MAGIC = 0x544d4a31; // "TMJ1"
+    private static final int HEADER_BYTES = 4;
+    private static final String SUFFIX = ".seg";
+
+    private static final byte FLAG_CTCP = 1;
+
+    private final Path dir;
+
+    // first sequence number of each segment, oldest first. the last segment
+    // is the one being written to.
+    private final Deque<Integer> segments;
+    private MappedByteBuffer current;
+
+    Journal(Path dir) throws IOException {
+        List<Integer> found;
+        String name;
+
+        this.dir = dir;
+        this.segments = new ArrayDeque<>();
+
+        Files.createDirectories(dir);
+
+        found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path p: stream) {
+                name = p.getFileName().toString();
+                try {
+                    found.add(Integer.parseUnsignedInt(name.substring(0, name.length() - SUFFIX.length()), 16));
+                } catch (NumberFormatException nfe) {
+                    log.warn("Ignoring unexpected file in journal directory: {}", p);
+                }
+            }
+        }
+
+        Collections.sort(found);
+        this.segments.addAll(found);
+    }
+
+    // directory holding the journal for the given channel.
+    static Path channelDir(Path base, String channel) {
+        try {
+            return base.resolve(URLEncoder.encode(channel.toLowerCase(Locale.ROOT), "UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError(uee);
+        }
+    }
+
+    // channel name for a journal directory, as created by channelDir.
+    static String channelName(Path dir) {
+        try {
+            return URLDecoder.decode(dir.getFileName().toString(), "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError(uee);
+        }
+    }
+
+    private Path segmentPath(int firstSeq) {
+        return this.dir.resolve(String.format("%08x%s", firstSeq, SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return fc.map(mode, 0, SEGMENT_BYTES);
+        }
+    }
+
+    // read back the last limit records in the journal, oldest first, and
+    // position the journal to append after them. records from a partially
+    // written or corrupt tail are discarded.
+    List<HistoryRecord> recover(int limit) throws IOException {
+        Deque<HistoryRecord> ret;
+        List<HistoryRecord> segment;
+        List<Integer> firsts;
+        MappedByteBuffer buf;
+        Integer last;
+
+        ret = new ArrayDeque<>();
+        firsts = new ArrayList<>(this.segments);
+        last = this.segments.peekLast();
+
+        // walk the segments newest first, stopping once enough records have
+        // been read.
+        for (int i = firsts.size() - 1; i >= 0 && ret.size() < limit; i--) {
+            buf = map(this.segmentPath(firsts.get(i)), FileChannel.MapMode.READ_WRITE);
+            segment = readSegment(buf);
+
+            if (firsts.get(i).equals(last)) {
+                this.current = buf;
+            }
+
+            for (int j = segment.size() - 1; j >= 0 && ret.size() < limit; j--) {
+                ret.addFirst(segment.get(j));
+            }
+        }
+
+        return new ArrayList<>(ret);
+    }
+
+    // parse the records in a segment, leaving the buffer positioned after
+    // the last complete record.
+    private static List<HistoryRecord> readSegment(MappedByteBuffer buf) {
+        List<HistoryRecord> ret;
+        int length, start;
+
+        ret = new ArrayList<>();
+
+        if (buf.getInt(0) != MAGIC) {
+            buf.position(HEADER_BYTES);
+            return ret;
+        }
+
+        buf.position(HEADER_BYTES);
+
+        while (buf.remaining() >= 4) {
+            start = buf.position();
+            length = buf.getInt();
+
+            if (length <= 0 || length > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+
+            try {
+                ret.add(readRecord(buf));
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                buf.position(start);
+                break;
+            }
+
+            buf.position(start + 4 + length);
+        }
+
+        return ret;
+    }
+
+    private static HistoryRecord readRecord(MappedByteBuffer buf) {
+        int seq, id, revision;
+        byte flags;
+        String nick, prefix, body;
+
+        seq = buf.getInt();
+        id = buf.getInt();
+        revision = buf.getInt();
+        flags = buf.get();
+        nick = readString(buf);
+        prefix = readString(buf);
+        body = readString(buf);
+
+        return new HistoryRecord(seq, id, revision, nick, prefix, body, (flags & FLAG_CTCP) != 0);
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        byte[] bytes;
+        int length;
+
+        length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("bad string length in journal record");
+        }
+
+        bytes = new byte[length];
+        buf.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // append a record for the entry with the given sequence number, sent by
+    // nick. oldest is the sequence number of the oldest entry still retained
+    // in the history, and is used to decide which segments can be dropped.
+    void append(int seq, LogEntry entry, String nickname, int oldest) throws IOException {
+        byte[] nick, prefix, body;
+        int length, start;
+
+        nick = nickname.getBytes(StandardCharsets.UTF_8);
+        prefix = entry.prefixBytes();
+        body = entry.bodyBytes();
+        length = 4 * 3 + 1 + 4 * 3 + nick.length + prefix.length + body.length;
+
+        if (4 + length > SEGMENT_BYTES - HEADER_BYTES) {
+            throw new IOException("message too large for journal segment");
+        }
+
+        if (this.current == null || this.current.remaining() < 4 + length) {
+            this.roll(seq, oldest);
+        }
+
+        // the length is written last, so that a record which is only partly
+        // written looks like the end of the segment.
+        start = this.current.position();
+        this.current.position(start + 4);
+        this.current.putInt(seq)
+            .putInt(entry.id())
+            .putInt(entry.revision())
+            .put(entry.isctcp() ? FLAG_CTCP : 0);
+        this.current.putInt(nick.length).put(nick);
+        this.current.putInt(prefix.length).put(prefix);
+        this.current.putInt(body.length).put(body);
+        this.current.putInt(start, length);
+    }
+
+    private void roll(int seq, int oldest) throws IOException {
+        Path path;
+
+        path = this.segmentPath(seq);
+        this.current = map(path, FileChannel.MapMode.READ_WRITE);
+        this.current.putInt(0, MAGIC);
+        this.current.position(HEADER_BYTES);
+        this.segments.addLast(seq);
+
+        this.compact(oldest);
+    }
+
+    // delete segments which only hold records older than oldest, i.e. those
+    // whose successor starts at or before oldest. mapped buffers for deleted
+    // segments are left to the garbage collector to unmap.
+    private void compact(int oldest) throws IOException {
+        Integer first;
+
+        while (this.segments.size() > 1) {
+            first = this.segments.pollFirst();
+
+            if (this.segments.peekFirst() > oldest) {
+                this.segments.addFirst(first);
+                break;
+            }
+
+            Files.deleteIfExists(this.segmentPath(first));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Storage for the lines of a single channel's history, as a ring indexed by
+ * sequence number: the line with sequence number seq occupies slot
+ * (seq mod capacity). Lines are put newest last and removed oldest first, and
+ * the owning MessageLog keeps track of which sequence numbers are retained.
+ *
+ * Not safe for concurrent use, other than by the matchers handed out for a
+ * search; callers hold the owning MessageLog's lock.
+ */
+interface LineStore {
+    int capacity();
+
+    // change the capacity, keeping the lines with sequence numbers from
+    // first to last inclusive.
+    void resize(int capacity, int first, int last);
+
+    void put(int seq, LogEntry entry);
+
+    void remove(int seq);
+
+    LogEntry get(int seq);
+
+    int nick(int seq);
+
+    int bodyLength(int seq);
+
+    // rough estimate of the memory used by a line, for the memory budget.
+    int footprint(int seq);
+
+    // note that entry, stored at seq, has just been revised.
+    void revised(int seq, LogEntry entry);
+
+    // returns a test of whether the line with a given sequence number has a
+    // non-empty body matching pm. each matcher may only be used by a single
+    // thread, but separate matchers may be used concurrently.
+    IntPredicate matcher(PatternMatcher pm);
+}
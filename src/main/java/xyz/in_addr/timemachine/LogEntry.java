@@ -0,0 +1,167 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single line of recorded channel history. To keep the per-line cost down,
+ * the nick is stored as an index into the channel's NickTable, and the
+ * message prefix and body are stored as UTF-8 bytes, which are only decoded
+ * when needed for output or replacement. Matching is done on the bytes
+ * directly.
+ */
+class LogEntry {
+    private static final byte[] EMPTY = new byte[0];
+
+    // every revision of a message shares one of these with the original,
+    // so that bumping the revision number is a constant time operation
+    // however many revisions are retained. messages which have never been
+    // revised don't have one.
+    static class Revisions {
+        int next = 1;
+    }
+
+    private final int id, revision, nick;
+    private final byte[] prefix, body;
+    private final boolean ctcp;
+    private Revisions revisions;
+
+    private LogEntry(int id, int revision, Revisions revisions, int nick, byte[] prefix, byte[] body, boolean ctcp) {
+        this.id = id;
+        this.revision = revision;
+        this.revisions = revisions;
+        this.nick = nick;
+        this.prefix = prefix;
+        this.body = body;
+        this.ctcp = ctcp;
+    }
+
+    private LogEntry(int id, int revision, Revisions revisions, int nick, String prefix, String body, boolean ctcp) {
+        this(id, revision, revisions, nick, encode(prefix, body, ctcp), encode(body), ctcp);
+    }
+
+    LogEntry(int id, int nick, String prefix, String body, boolean ctcp) {
+        this(id, 0, null, nick, prefix, body, ctcp);
+    }
+
+    // validate the message parts, and encode the prefix.
+    private static byte[] encode(String prefix, String body, boolean ctcp) {
+        if (prefix == null || body == null) {
+            throw new NullPointerException("String parameter is unexpectedly null");
+        }
+
+        if (prefix.length() == 0 && body.length() == 0) {
+            throw new IllegalArgumentException("Message prefix and message body must not both be empty");
+        } else if (prefix.length() != 0 && ctcp) {
+            throw new IllegalArgumentException("CTCP messages may not have a non-empty prefix part");
+        }
+
+        return encode(prefix);
+    }
+
+    private static byte[] encode(String s) {
+        return s.length() == 0 ? EMPTY : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String decode(byte[] b) {
+        return b.length == 0 ? "" : new String(b, StandardCharsets.UTF_8);
+    }
+
+    // recreate an entry from its stored parts. revisions may be null if the
+    // message has never been revised.
+    static LogEntry fromBytes(int id, int revision, Revisions revisions, int nick, byte[] prefix, byte[] body, boolean ctcp) {
+        return new LogEntry(id, revision, revisions, nick, prefix.length == 0 ? EMPTY : prefix,
+                            body.length == 0 ? EMPTY : body, ctcp);
+    }
+
+    // recreate an entry read back from elsewhere. earlier is a previously
+    // restored revision of the same message, if there is one, with which the
+    // revision counter is shared.
+    static LogEntry restore(int id, int revision, LogEntry earlier, int nick, String prefix, String body, boolean ctcp) {
+        Revisions revisions;
+
+        revisions = earlier != null ? earlier.revisions() : new Revisions();
+        revisions.next = Math.max(revisions.next, revision + 1);
+
+        return new LogEntry(id, revision, revisions, nick, prefix, body, ctcp);
+    }
+
+    // the revision counter shared with other revisions of this message, or
+    // null if there hasn't been a revision yet.
+    Revisions sharedRevisions() {
+        return this.revisions;
+    }
+
+    private Revisions revisions() {
+        if (this.revisions == null) {
+            this.revisions = new Revisions();
+        }
+
+        return this.revisions;
+    }
+
+    int id() {
+        return this.id;
+    }
+
+    int revision() {
+        return this.revision;
+    }
+
+    int nextRevision() {
+        return this.revisions == null ? 1 : this.revisions.next;
+    }
+
+    // note that a new revision of this message has been made, which is seen
+    // by every other revision of the message.
+    void notifyRevised() {
+        this.revisions().next++;
+    }
+
+    boolean isctcp() {
+        return this.ctcp;
+    }
+
+    // index of the nick in the channel's NickTable.
+    int nick() {
+        return this.nick;
+    }
+
+    byte[] prefixBytes() {
+        return this.prefix;
+    }
+
+    byte[] bodyBytes() {
+        return this.body;
+    }
+
+    // rough estimate of the heap used by this entry, for the memory budget:
+    // the object itself, its body array, and its prefix array if it isn't
+    // the shared empty one.
+    int footprint() {
+        return 40 + 16 + this.body.length + (this.prefix.length == 0 ? 0 : 16 + this.prefix.length);
+    }
+
+    String prefix() {
+        return decode(this.prefix);
+    }
+
+    String body() {
+        return decode(this.body);
+    }
+
+    String fullMessage() {
+        return this.prefix() + this.body();
+    }
+
+    LogEntry revise(String newMessage) {
+        if (this.body.length == 0) {
+            throw new IllegalArgumentException("cannot revise channel message without a message body");
+        } else if (this.prefix.length == 0 && newMessage.length() == 0) {
+            throw new IllegalArgumentException("Message prefix and message body must not both be empty");
+        }
+
+        return new LogEntry(this.id, this.nextRevision(), this.revisions(), this.nick, this.prefix, encode(newMessage), this.ctcp);
+    }
+}
@@ -10,29 +10,60 @@ import xyz.in_addr.timemachine.TimeMachine;
 import org.pircbotx.Configuration;
 import org.pircbotx.PircBotX;
 import org.pircbotx.exception.IrcException;
-import org.pircbotx.hooks.managers.SequentialListenerManager;
 
 /**
  * Bot entry point.
  */
 public class Main {
+    private static final String HANDOFF_QUIT_MESSAGE = "Regenerating...";
+
     public static void main (String[] args) {
         Configurator.TMConfig config;
         Configuration.Builder builder;
         Configuration botconfig;
         TimeMachine machine;
         AdminListener admin;
+        PooledListenerManager listeners;
+        ReplyQueue replies;
         PircBotX bot;
 
         config = Configurator.loadConfig(args);
 
         builder = config.config;
-        machine = new TimeMachine(config.recalllimit, config.ignorelist, config.logchannel);
-        admin = new AdminListener(config.ignorelist, config.ownerlist, config.initialmodes);
+        replies = new ReplyQueue(config.replyage * 1000L);
+        machine = new TimeMachine(config.history, replies, config.ignorelist, config.logchannel);
+
+        if (config.takeoverport != 0) {
+            try {
+                Handoff.receive(config.takeoverport, config.handofftoken, machine);
+            } catch (IOException ioe) {
+                System.err.println("History handoff failed, starting without history: " + ioe.getMessage());
+            }
+        }
 
-        botconfig = builder.addListener(admin).addListener(machine).buildConfiguration();
+        // the listener manager has to be set before any listeners are added,
+        // or the builder creates the default one.
+        listeners = new PooledListenerManager(config.workers, config.eventqueue);
+        Metrics.register(listeners, replies, config.history.budget());
+        admin = new AdminListener(config.ignorelist, config.ownerlist, config.initialmodes, machine, listeners);
+        botconfig = builder.setListenerManager(listeners)
+            .addListener(admin)
+            .addListener(machine)
+            .buildConfiguration();
         bot = new PircBotX(botconfig);
 
+        if (config.handoffport != 0) {
+            try {
+                Handoff.serve(config.handoffport, config.handofftoken, machine, () -> {
+                    bot.stopBotReconnect();
+                    bot.sendIRC().quitServer(HANDOFF_QUIT_MESSAGE);
+                });
+            } catch (IOException ioe) {
+                System.err.println("Could not listen for history handoff: " + ioe.getMessage());
+                System.exit(1);
+            }
+        }
+
         try {
             bot.startBot();
         } catch (IrcException ie) {
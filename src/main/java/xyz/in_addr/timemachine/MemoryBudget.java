@@ -0,0 +1,224 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Global limit on the (estimated) number of bytes of history held across all
+ * channels. Each channel's line limit starts out at the recall limit, and is
+ * then adjusted every so often so that channels share the budget in
+ * proportion to their traffic. A channel always keeps twice as many lines as
+ * commands in it have recently needed to reach back, and never fewer than a
+ * minimum; no channel keeps more than the recall limit.
+ *
+ * Should the total go over budget in between, lines are reclaimed from the
+ * quietest channels first, down to a low-water mark below the budget, so that
+ * a channel at its limit doesn't cause a rebalance on every push.
+ *
+ * Rebalancing is done by whichever thread pushes the message which calls for
+ * it, and only ever try-locks other channels, so a busy channel is never
+ * waited on; it applies its new limit on its next push.
+ */
+class MemoryBudget {
+    private static final Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+
+    // no channel is cut below this many lines.
+    private static final int MIN_LINES = 64;
+
+    // number of messages pushed between periodic rebalances.
+    private static final int REBALANCE_INTERVAL = 1024;
+
+    private final long maxBytes, lowWater;
+    private final AtomicLong total, pushes;
+    private final AtomicBoolean rebalancing;
+    private final List<MessageLog> channels;
+
+    MemoryBudget(long bytes) {
+        this.maxBytes = bytes;
+        this.lowWater = bytes - bytes / 8;
+        this.total = new AtomicLong();
+        this.pushes = new AtomicLong();
+        this.rebalancing = new AtomicBoolean();
+        this.channels = new CopyOnWriteArrayList<>();
+    }
+
+    void register(MessageLog channel) {
+        this.channels.add(channel);
+    }
+
+    long maxBytes() {
+        return this.maxBytes;
+    }
+
+    long totalBytes() {
+        return this.total.get();
+    }
+
+    // account for a change in the number of bytes held by a channel. called
+    // with that channel's lock held.
+    void charge(long delta) {
+        boolean periodic;
+        long t;
+
+        t = this.total.addAndGet(delta);
+        if (delta <= 0) {
+            return;
+        }
+
+        periodic = this.pushes.incrementAndGet() % REBALANCE_INTERVAL == 0;
+        if (t > this.maxBytes || periodic) {
+            this.rebalance(periodic);
+        }
+    }
+
+    // what rebalancing needs of a channel, read once at the start, since
+    // other threads keep pushing to it meanwhile, and the channels are
+    // sorted on these values.
+    private static final class Sample {
+        final MessageLog channel;
+        final double activity;
+        final long avg, recallLimit, floor;
+
+        Sample(MessageLog channel) {
+            this.channel = channel;
+            this.activity = channel.activity();
+            this.avg = channel.averageLineBytes();
+            this.recallLimit = channel.recallLimit();
+            this.floor = Math.min(this.recallLimit, Math.max(MIN_LINES, 2L * channel.reach()));
+        }
+
+        // bytes this channel could take over its floor, per unit of
+        // activity.
+        double room() {
+            return (this.recallLimit - this.floor) * this.avg / this.activity;
+        }
+    }
+
+    private void rebalance(boolean periodic) {
+        List<Sample> byActivity;
+
+        if (!this.rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            byActivity = new ArrayList<>();
+
+            for (MessageLog c: this.channels) {
+                if (periodic) {
+                    c.sampleActivity();
+                }
+
+                byActivity.add(new Sample(c));
+            }
+
+            // quietest first.
+            byActivity.sort(Comparator.comparingDouble(s -> s.activity));
+
+            if (periodic) {
+                this.allocate(byActivity);
+            } else {
+                this.reclaim(byActivity);
+            }
+        } finally {
+            this.rebalancing.set(false);
+        }
+    }
+
+    // share the budget out between the channels in proportion to their
+    // traffic. every channel first gets its floor; the rest is shared out
+    // by water filling, so that what a channel can't use because of its
+    // recall limit goes to the others.
+    private void allocate(List<Sample> byActivity) {
+        List<Sample> sharing;
+        long remaining, lines;
+        double activity, share;
+
+        sharing = new ArrayList<>();
+        remaining = this.lowWater;
+        activity = 0;
+
+        for (Sample s: byActivity) {
+            if (s.avg == 0) {
+                continue;
+            }
+
+            remaining -= s.floor * s.avg;
+
+            if (s.activity > 0) {
+                sharing.add(s);
+                activity += s.activity;
+            } else {
+                s.channel.setLimit((int) s.floor);
+                s.channel.tryTrim();
+            }
+        }
+
+        remaining = Math.max(0, remaining);
+
+        // channels which would reach their recall limit on the smallest share
+        // are settled first.
+        sharing.sort(Comparator.comparingDouble(Sample::room));
+
+        for (Sample s: sharing) {
+            share = activity > 0 ? remaining * (s.activity / activity) : 0;
+            lines = Math.min(s.recallLimit - s.floor, (long) (share / s.avg));
+
+            s.channel.setLimit((int) (s.floor + lines));
+            s.channel.tryTrim();
+
+            remaining -= lines * s.avg;
+            activity -= s.activity;
+        }
+
+        // old commands count for less and less.
+        for (Sample s: byActivity) {
+            s.channel.decayReach();
+        }
+    }
+
+    // bring the total back down to the low-water mark, quietest channels
+    // first.
+    private void reclaim(List<Sample> byActivity) {
+        long excess, drop;
+        int lines, floor;
+
+        excess = this.total.get() - this.lowWater;
+
+        // the first pass spares the lines which commands have been reaching;
+        // the second doesn't.
+        for (int pass = 0; pass < 2 && excess > 0; pass++) {
+            for (Sample s: byActivity) {
+                if (excess <= 0) {
+                    break;
+                }
+
+                lines = s.channel.lines();
+                floor = (int) (pass == 0 ? s.floor : Math.min(MIN_LINES, s.recallLimit));
+
+                if (lines <= floor || s.avg == 0) {
+                    continue;
+                }
+
+                drop = Math.min(lines - floor, (excess + s.avg - 1) / s.avg);
+                s.channel.setLimit((int) (lines - drop));
+                s.channel.tryTrim();
+
+                excess -= drop * s.avg;
+            }
+        }
+
+        if (excess > 0) {
+            log.warn("History memory budget cannot be met with every channel at its minimum");
+        }
+    }
+}
@@ -0,0 +1,1070 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logging structure for messages in a single channel. All methods must be
+ * called with lock held.
+ */
+class MessageLog {
+    private static final Logger log = LoggerFactory.getLogger(MessageLog.class);
+
+    private static final String PRIVMSGFMT = "<%s%s> %s";
+    private static final String ACTIONFMT = "* %s%s %s";
+
+    // the ring starts out small and is doubled as it fills, up to the
+    // channel's limit, so that quiet channels don't pay for a large limit up
+    // front.
+    private static final int INITIAL_CAPACITY = 64;
+
+    // number of lines matched by each leaf task of a parallel search, and
+    // the number of lines a leaf task visits between charging the budget.
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int CHARGE_BATCH = 64;
+
+    // returned by searches which find nothing.
+    private static final int NONE = -1;
+
+    final ReentrantLock lock;
+
+    private final int recallLimit;
+    private final ScanBudget budget;
+
+    // searches covering at least this many lines are run in parallel, or
+    // never if zero.
+    private final int parallelThreshold;
+
+    // memory budget shared with the other channels, if there is one, and
+    // the number of lines this channel may currently hold, which the budget
+    // may lower below (and raise back up to) the recall limit.
+    private final MemoryBudget memory;
+    private volatile int limit;
+
+    // estimated bytes held by retained lines.
+    private volatile long bytes;
+
+    // lines pushed since the memory budget last sampled them, and the
+    // decaying average it keeps of them.
+    private final AtomicInteger pushes;
+    private volatile double activity;
+
+    // how far back, in lines, commands have recently had to reach to find a
+    // match. decayed by the memory budget each time it rebalances.
+    private final AtomicInteger reach;
+
+    // commands handled in the channel recently.
+    private final Rate commands;
+
+    // journal to which entries are written as they are pushed, if history is
+    // being persisted. dropped if writing to it fails.
+    private Journal journal;
+
+    // messages are stored in a circular buffer, indexed by sequence number.
+    // every entry pushed to the log (including revisions) takes the next
+    // sequence number, and new messages use their sequence number as their
+    // id, so the entry for a message id lives in the slot for its id for as
+    // long as it is retained. the oldest retained entry has sequence number
+    // (nextId - size), and the newest (nextId - 1).
+    private final LineStore lines;
+    private int nextId, size;
+
+    // nicks of the senders of retained messages.
+    private final NickTable nickTable;
+
+    // secondary index of the sequence numbers of each nick's retained
+    // messages, keyed by case-folded nick. commands with an exact target
+    // only need to visit that nick's lines, rather than the whole channel.
+    private final Map<String, SeqQueue> nicks;
+
+    // the same queues, arranged by nick prefix, for commands with an
+    // explicit (prefix) target.
+    private final NickTrie nickTrie;
+
+    // the sequence numbers of lines by the trigrams in their bodies, if
+    // enabled. searches for patterns requiring some literal text may then
+    // only need to visit the few lines containing its rarest trigram.
+    private final TrigramIndex trigrams;
+
+    // memory and journal may be null, in which case the history is always
+    // kept to the recall limit, and not persisted. if journal is not null,
+    // the log starts out with the history recorded in the journal. the
+    // memory and journal settings of options are left to the caller, which
+    // shares them between channels.
+    MessageLog(HistoryOptions options, MemoryBudget memory, Journal journal) {
+        int limit;
+
+        limit = options.limit();
+
+        this.lock = new ReentrantLock();
+        this.recallLimit = limit;
+        this.budget = options.budget();
+        this.parallelThreshold = options.parallel();
+        this.memory = memory;
+        this.limit = limit;
+        this.bytes = 0;
+        this.pushes = new AtomicInteger();
+        this.activity = 0;
+        this.reach = new AtomicInteger();
+        this.commands = new Rate();
+        this.journal = journal;
+        this.lines = options.offHeap() ? new OffHeapLineStore(Math.min(limit, INITIAL_CAPACITY))
+            : new HeapLineStore(Math.min(limit, INITIAL_CAPACITY));
+        this.nextId = 0;
+        this.size = 0;
+        this.nickTable = new NickTable();
+        this.nicks = new HashMap<>();
+        this.nickTrie = new NickTrie();
+        this.trigrams = options.trigrams() ? new TrigramIndex() : null;
+
+        if (journal != null) {
+            this.restore();
+        }
+
+        if (memory != null) {
+            memory.register(this);
+        }
+    }
+
+    private void restore() {
+        try {
+            this.restore(this.journal.recover(this.recallLimit));
+        } catch (IOException ioe) {
+            log.error("Could not read history journal, not persisting history: {}", ioe.toString());
+            this.journal = null;
+        }
+    }
+
+    // fill an empty log with previously recorded history, oldest first.
+    // records beyond the recall limit are dropped from the old end.
+    void restore(List<HistoryRecord> records) {
+        Map<Integer, LogEntry> byId;
+        HistoryRecord r;
+        LogEntry entry;
+        int start;
+
+        if (this.size != 0) {
+            throw new IllegalStateException("restoring history into non-empty log");
+        }
+
+        // only restore the most recent unbroken run of sequence numbers, as
+        // entries refer to each other by sequence number.
+        start = Math.max(0, records.size() - this.recallLimit);
+        for (int i = start + 1; i < records.size(); i++) {
+            if (records.get(i).seq != records.get(i - 1).seq + 1) {
+                start = i;
+            }
+        }
+
+        if (start == records.size()) {
+            return;
+        }
+
+        this.nextId = records.get(start).seq;
+        byId = new HashMap<>();
+
+        for (int i = start; i < records.size(); i++) {
+            r = records.get(i);
+            entry = LogEntry.restore(r.id, r.revision, byId.get(r.id), this.intern(r.nick), r.prefix, r.body, r.ctcp);
+            byId.put(r.id, entry);
+            this.store(entry);
+        }
+
+        log.info("Restored {} lines of history", records.size() - start);
+    }
+
+    // copy of the whole history, oldest first.
+    List<HistoryRecord> snapshot() {
+        List<HistoryRecord> ret;
+
+        ret = new ArrayList<>(this.size);
+        for (int seq = this.oldest(); seq <= this.newest(); seq++) {
+            ret.add(this.record(seq));
+        }
+
+        return ret;
+    }
+
+    private HistoryRecord record(int seq) {
+        LogEntry entry;
+
+        entry = this.entry(seq);
+
+        return new HistoryRecord(seq, entry.id(), entry.revision(), this.nickTable.name(entry.nick()),
+                                 entry.prefix(), entry.body(), entry.isctcp());
+    }
+
+    private static String fold(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+
+    private int newest() {
+        return this.nextId - 1;
+    }
+
+    private int oldest() {
+        return this.nextId - this.size;
+    }
+
+    // look up the entry with the given sequence number, or null if it has
+    // been evicted (or not yet pushed).
+    private LogEntry entry(int seq) {
+        if (seq < this.oldest() || seq > this.newest()) {
+            return null;
+        }
+
+        return this.lines.get(seq);
+    }
+
+    void pushMsg(String nick, String prefix, String body, boolean ctcp) {
+        this.pushMsg(new LogEntry(this.nextId, this.intern(nick), prefix, body, ctcp));
+    }
+
+    // index of nick in the nick table, adding it if necessary. the new entry
+    // has no references until a line using it is stored.
+    private int intern(String nick) {
+        String folded;
+        int ret;
+
+        ret = this.nickTable.lookup(nick);
+        if (ret < 0) {
+            folded = fold(nick);
+            ret = this.nickTable.add(nick, folded, this.nicks.computeIfAbsent(folded, this::newNick));
+        }
+
+        return ret;
+    }
+
+    private void pushMsg(LogEntry msg) {
+        this.store(msg);
+
+        if (this.journal != null) {
+            try {
+                this.journal.append(this.newest(), msg, this.nickTable.name(msg.nick()), this.oldest());
+            } catch (IOException ioe) {
+                log.error("Could not write to history journal, no longer persisting history: {}", ioe.toString());
+                this.journal = null;
+            }
+        }
+    }
+
+    private void store(LogEntry msg) {
+        int footprint;
+
+        // the new line is indexed before the oldest is evicted, so that its
+        // nick stays in the table and index even if the evicted line was the
+        // only other one from the same nick.
+        this.nickTable.retain(msg.nick());
+        this.liveQueue(msg.nick()).add(this.nextId);
+
+        // the limit may have been lowered since the last push, in which case
+        // more than one line goes.
+        while (this.size >= Math.max(1, this.limit)) {
+            this.evict();
+        }
+
+        if (this.size == this.lines.capacity()) {
+            this.lines.resize((int) Math.min((long) this.lines.capacity() * 2, this.limit), this.oldest(), this.newest());
+        }
+
+        this.lines.put(this.nextId, msg);
+        footprint = this.lines.footprint(this.nextId);
+
+        if (this.trigrams != null) {
+            footprint += TrigramIndex.POSTING_BYTES * this.trigrams.add(this.nextId, msg.bodyBytes());
+        }
+
+        this.nextId++;
+        this.size++;
+        this.bytes += footprint;
+        this.pushes.incrementAndGet();
+
+        // this may trim the log, so it comes last.
+        if (this.memory != null) {
+            this.memory.charge(footprint);
+        }
+    }
+
+    // drop the oldest entry.
+    private void evict() {
+        SeqQueue seqs;
+        String nick;
+        int seq, index, footprint;
+
+        seq = this.oldest();
+        index = this.lines.nick(seq);
+
+        nick = this.nickTable.folded(index);
+        seqs = this.nickTable.queue(index);
+
+        // the oldest entry in the channel is necessarily the oldest entry
+        // from its nick.
+        if (seqs.removeFirst() != seq) {
+            throw new IllegalStateException("nick index out of step with message history");
+        }
+
+        if (seqs.isEmpty()) {
+            this.nicks.remove(nick);
+            this.nickTrie.remove(nick);
+        }
+
+        this.nickTable.release(index);
+
+        footprint = this.lines.footprint(seq);
+
+        if (this.trigrams != null) {
+            footprint += TrigramIndex.POSTING_BYTES * this.trigrams.remove(seq, this.lines.get(seq).bodyBytes());
+        }
+
+        this.lines.remove(seq);
+        this.size--;
+        this.bytes -= footprint;
+
+        if (this.memory != null) {
+            this.memory.charge(-footprint);
+        }
+    }
+
+    // the following are used by the memory budget and for reporting, and
+    // other than tryTrim may be called without holding lock.
+
+    int recallLimit() {
+        return this.recallLimit;
+    }
+
+    int limit() {
+        return this.limit;
+    }
+
+    void setLimit(int limit) {
+        this.limit = Math.min(limit, this.recallLimit);
+    }
+
+    int lines() {
+        return this.size;
+    }
+
+    long bytes() {
+        return this.bytes;
+    }
+
+    long averageLineBytes() {
+        int lines;
+
+        lines = this.size;
+        return lines == 0 ? 0 : this.bytes / lines;
+    }
+
+    double activity() {
+        return this.activity;
+    }
+
+    void sampleActivity() {
+        this.activity = this.activity / 2 + this.pushes.getAndSet(0);
+    }
+
+    int reach() {
+        return this.reach.get();
+    }
+
+    void decayReach() {
+        this.reach.updateAndGet(r -> r - r / 4);
+    }
+
+    void noteCommand() {
+        this.commands.record();
+    }
+
+    long commandsPerMinute() {
+        return this.commands.perMinute();
+    }
+
+    private void noteReach(int seq) {
+        int depth;
+
+        depth = this.newest() - seq + 1;
+        this.reach.accumulateAndGet(depth, Math::max);
+    }
+
+    // drop lines down to the current limit, if the log isn't busy; if it is,
+    // the limit is applied by the next push instead.
+    void tryTrim() {
+        if (!this.lock.tryLock()) {
+            return;
+        }
+
+        try {
+            while (this.size > Math.max(1, this.limit)) {
+                this.evict();
+            }
+
+            // give back the ring's memory too, once it is mostly empty.
+            if (this.lines.capacity() > INITIAL_CAPACITY && this.size < this.lines.capacity() / 4) {
+                this.lines.resize(Math.max(INITIAL_CAPACITY, this.size * 2), this.oldest(), this.newest());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // the queue of the nick at index in the table, for a line about to be
+    // added to it. a queue is dropped from the index once all of its lines
+    // have been evicted, but the table entry may outlive that, if something
+    // such as a pending revision still holds a reference to it. the entry
+    // then either puts its queue back in the index, or, if a case variant
+    // of the nick has since been given a new queue, switches to that one.
+    private SeqQueue liveQueue(int index) {
+        SeqQueue ret, current;
+        String folded;
+
+        ret = this.nickTable.queue(index);
+        if (!ret.isEmpty()) {
+            return ret;
+        }
+
+        folded = this.nickTable.folded(index);
+        current = this.nicks.get(folded);
+
+        if (current == null) {
+            this.nicks.put(folded, ret);
+            this.nickTrie.put(folded, ret);
+        } else if (current != ret) {
+            this.nickTable.setQueue(index, current);
+            ret = current;
+        }
+
+        return ret;
+    }
+
+    private SeqQueue newNick(String nick) {
+        SeqQueue ret;
+
+        ret = new SeqQueue();
+        this.nickTrie.put(nick, ret);
+
+        return ret;
+    }
+
+    // check the budget before visiting a line.
+    private boolean charge(ScanBudget.Tracker budget, int seq) {
+        return budget.charge(this.lines.bodyLength(seq));
+    }
+
+    // search backwards through the history for the (skipMatches + 1)th line
+    // from target which matches pm, returning its sequence number. a null
+    // target matches lines from any nick. returns NONE if there is no such
+    // line, or if the search runs over budget.
+    private int find(String target, boolean exactTarget, PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        List<SeqQueue> queues;
+        SeqQueue seqs, candidates;
+        int total;
+
+        if (target == null) {
+            candidates = this.candidates(pm, this.size);
+            if (candidates != null) {
+                return this.find(candidates, null, false, pm, budget, skipMatches);
+            }
+
+            return this.findAll(pm, budget, skipMatches);
+        }
+
+        if (exactTarget) {
+            seqs = this.nicks.get(fold(target));
+            if (seqs == null) {
+                return NONE;
+            }
+
+            candidates = this.candidates(pm, seqs.size());
+            if (candidates != null) {
+                return this.find(candidates, fold(target), true, pm, budget, skipMatches);
+            }
+
+            return this.find(seqs, pm, budget, skipMatches);
+        }
+
+        queues = this.nickTrie.withPrefix(fold(target));
+
+        total = 0;
+        for (SeqQueue queue : queues) {
+            total += queue.size();
+        }
+
+        candidates = this.candidates(pm, total);
+        if (candidates != null) {
+            return this.find(candidates, fold(target), false, pm, budget, skipMatches);
+        }
+
+        if (queues.size() == 1) {
+            return this.find(queues.get(0), pm, budget, skipMatches);
+        }
+
+        return this.find(queues, pm, budget, skipMatches);
+    }
+
+    // the lines containing the rarest trigram of pm's required literal, if
+    // the history is indexed by trigram and there are fewer of them than the
+    // given number of lines from the target, or null otherwise.
+    private SeqQueue candidates(PatternMatcher pm, int lines) {
+        RequiredLiteral literal;
+        SeqQueue ret;
+
+        if (this.trigrams == null || (literal = pm.literal()) == null) {
+            return null;
+        }
+
+        ret = this.trigrams.rarest(literal.bytes());
+        return ret != null && ret.size() < lines ? ret : null;
+    }
+
+    // search the lines containing a trigram, newest first, skipping those
+    // which aren't from the target, if there is one.
+    private int find(SeqQueue candidates, String target, boolean exactTarget, PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        IntPredicate matcher;
+        String nick;
+        int seq;
+
+        matcher = this.lines.matcher(pm);
+
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            seq = candidates.get(i);
+
+            if (target != null) {
+                nick = this.nickTable.folded(this.lines.nick(seq));
+                if (exactTarget ? !nick.equals(target) : !nick.startsWith(target)) {
+                    continue;
+                }
+            }
+
+            if (!this.charge(budget, seq)) {
+                return NONE;
+            }
+
+            if (!matcher.test(seq)) {
+                continue;
+            }
+
+            if (skipMatches > 0) {
+                skipMatches--;
+            } else {
+                return seq;
+            }
+        }
+
+        return NONE;
+    }
+
+    private boolean parallel(int lines) {
+        return this.parallelThreshold != 0 && lines >= this.parallelThreshold;
+    }
+
+    // search a single nick's lines.
+    private int find(SeqQueue seqs, PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        IntPredicate matcher;
+        int seq;
+
+        if (this.parallel(seqs.size())) {
+            return this.findParallel(i -> seqs.get(seqs.size() - 1 - i), seqs.size(), pm, budget, skipMatches);
+        }
+
+        matcher = this.lines.matcher(pm);
+
+        for (int i = seqs.size() - 1; i >= 0; i--) {
+            seq = seqs.get(i);
+
+            if (!this.charge(budget, seq)) {
+                return NONE;
+            }
+
+            if (!matcher.test(seq)) {
+                continue;
+            }
+
+            if (skipMatches > 0) {
+                skipMatches--;
+            } else {
+                return seq;
+            }
+        }
+
+        return NONE;
+    }
+
+    // search every line in the channel. lines lacking the pattern's
+    // required literal, if it has one, are passed over without running the
+    // regex, as for any other search.
+    private int findAll(PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        IntPredicate matcher;
+        int newest;
+
+        newest = this.newest();
+        if (this.parallel(this.size)) {
+            return this.findParallel(i -> newest - i, this.size, pm, budget, skipMatches);
+        }
+
+        matcher = this.lines.matcher(pm);
+
+        for (int seq = newest; seq >= this.oldest(); seq--) {
+            if (!this.charge(budget, seq)) {
+                return NONE;
+            }
+
+            if (!matcher.test(seq)) {
+                continue;
+            }
+
+            if (skipMatches > 0) {
+                skipMatches--;
+            } else {
+                return seq;
+            }
+        }
+
+        return NONE;
+    }
+
+    // search the lines of several nicks, merging their queues so that lines
+    // are still visited newest first.
+    private int find(List<SeqQueue> queues, PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        IntPredicate matcher;
+        int[] cursors, merged;
+        int best, bestseq, seq, total;
+
+        cursors = new int[queues.size()];
+        total = 0;
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = queues.get(i).size() - 1;
+            total += queues.get(i).size();
+        }
+
+        // a parallel search needs random access to the candidate lines, so
+        // the merge is done up front, which is cheap next to the matching.
+        merged = this.parallel(total) ? new int[total] : null;
+        matcher = merged == null ? this.lines.matcher(pm) : null;
+        total = 0;
+
+        while (true) {
+            best = -1;
+            bestseq = Integer.MIN_VALUE;
+
+            for (int i = 0; i < cursors.length; i++) {
+                if (cursors[i] < 0) {
+                    continue;
+                }
+
+                seq = queues.get(i).get(cursors[i]);
+                if (best < 0 || seq > bestseq) {
+                    best = i;
+                    bestseq = seq;
+                }
+            }
+
+            if (best < 0) {
+                break;
+            }
+
+            cursors[best]--;
+
+            if (merged != null) {
+                merged[total++] = bestseq;
+                continue;
+            }
+
+            if (!this.charge(budget, bestseq)) {
+                return NONE;
+            }
+
+            if (!matcher.test(bestseq)) {
+                continue;
+            }
+
+            if (skipMatches > 0) {
+                skipMatches--;
+            } else {
+                return bestseq;
+            }
+        }
+
+        if (merged == null) {
+            return NONE;
+        }
+
+        return this.findParallel(i -> merged[i], merged.length, pm, budget, skipMatches);
+    }
+
+    // search count candidate lines in parallel, where candidates maps an
+    // index (with zero being the newest) to a sequence number. the history
+    // is split into segments which are matched concurrently, and each
+    // segment reports its first (skipMatches + 1) matches; joining the
+    // segments newest first then gives the same line as a sequential
+    // search would.
+    //
+    // the sequential search would stop once it had visited as many lines,
+    // or bytes, as the budget allows, so only that many candidates are
+    // searched. older segments also give up as soon as newer ones have
+    // found enough, so that they can't use up the time the budget allows
+    // for lines which the answer doesn't depend on.
+    private int findParallel(IntUnaryOperator candidates, int count, PatternMatcher pm, ScanBudget.Tracker budget, long skipMatches) {
+        Segment root;
+        int[] found;
+        int wanted, limit;
+
+        if (skipMatches >= count) {
+            return NONE;
+        }
+
+        limit = budget.within(count, i -> this.lines.bodyLength(candidates.applyAsInt(i)));
+
+        wanted = (int) skipMatches + 1;
+        root = new Segment(candidates, limit, pm, budget, wanted);
+        found = ForkJoinPool.commonPool().invoke(root);
+
+        // a match is only the answer if no line newer than it went
+        // unsearched.
+        if (found.length >= wanted && found[wanted - 1] < root.cutoff.get()) {
+            return candidates.applyAsInt(found[wanted - 1]);
+        }
+
+        if (root.cutoff.get() < count) {
+            budget.exhaust();
+        }
+
+        return NONE;
+    }
+
+    private class Segment extends RecursiveTask<int[]> {
+        private final IntUnaryOperator candidates;
+        private final int from, to, wanted;
+        private final PatternMatcher pm;
+        private final ScanBudget.Tracker budget;
+
+        // shared by every segment of a search: the index from which lines
+        // need no longer be searched, as enough matches have been found
+        // before it, and the index from which they may not have been, as
+        // the budget ran out.
+        private final AtomicInteger stop, cutoff;
+
+        Segment(IntUnaryOperator candidates, int count, PatternMatcher pm, ScanBudget.Tracker budget, int wanted) {
+            this.candidates = candidates;
+            this.from = 0;
+            this.to = count;
+            this.pm = pm;
+            this.budget = budget;
+            this.wanted = wanted;
+            this.stop = new AtomicInteger(count);
+            this.cutoff = new AtomicInteger(count);
+        }
+
+        private Segment(Segment parent, int from, int to) {
+            this.candidates = parent.candidates;
+            this.from = from;
+            this.to = to;
+            this.pm = parent.pm;
+            this.budget = parent.budget;
+            this.wanted = parent.wanted;
+            this.stop = parent.stop;
+            this.cutoff = parent.cutoff;
+        }
+
+        // returns the indices of up to wanted matching candidates in
+        // [from, to), in order.
+        @Override
+        protected int[] compute() {
+            Segment newer, older;
+            int[] newerFound, olderFound, ret;
+            int mid;
+
+            if (this.from >= this.stop.get()) {
+                return new int[0];
+            }
+
+            if (this.to - this.from <= SEGMENT_SIZE) {
+                return this.found(this.scan());
+            }
+
+            mid = (this.from + this.to) >>> 1;
+            newer = new Segment(this, this.from, mid);
+            older = new Segment(this, mid, this.to);
+
+            older.fork();
+            newerFound = newer.compute();
+
+            // the older half isn't needed if the newer has enough, and
+            // needn't even be run if no other thread has taken it yet.
+            if (newerFound.length >= this.wanted && older.tryUnfork()) {
+                return newerFound;
+            }
+
+            olderFound = older.join();
+
+            if (newerFound.length >= this.wanted) {
+                return newerFound;
+            }
+
+            ret = Arrays.copyOf(newerFound, Math.min(this.wanted, newerFound.length + olderFound.length));
+            System.arraycopy(olderFound, 0, ret, newerFound.length, ret.length - newerFound.length);
+
+            return this.found(ret);
+        }
+
+        // nothing older than the last of wanted matches can change the
+        // answer, whatever is found before them.
+        private int[] found(int[] found) {
+            if (found.length >= this.wanted) {
+                this.stop.accumulateAndGet(found[this.wanted - 1] + 1, Math::min);
+            }
+
+            return found;
+        }
+
+        private int[] scan() {
+            IntPredicate matcher;
+            int[] found;
+            int nfound, lines, seq;
+            long bytes;
+
+            matcher = MessageLog.this.lines.matcher(this.pm);
+
+            // a segment can't find more matches than it has lines, however
+            // many are wanted.
+            found = new int[Math.min(this.wanted, this.to - this.from)];
+            nfound = 0;
+            lines = 0;
+            bytes = 0;
+
+            for (int i = this.from; i < this.to && nfound < this.wanted; i++) {
+                // charging the shared budget in batches keeps the threads
+                // from contending on it for every line.
+                if (lines == CHARGE_BATCH) {
+                    if (i >= this.stop.get()) {
+                        break;
+                    }
+
+                    if (!this.budget.charge(lines, bytes)) {
+                        this.cutoff.accumulateAndGet(i, Math::min);
+                        break;
+                    }
+
+                    lines = 0;
+                    bytes = 0;
+                }
+
+                seq = this.candidates.applyAsInt(i);
+                lines++;
+                bytes += MessageLog.this.lines.bodyLength(seq);
+
+                if (matcher.test(seq)) {
+                    found[nfound++] = i;
+                }
+            }
+
+            this.budget.charge(lines, bytes);
+
+            return Arrays.copyOf(found, nfound);
+        }
+    }
+
+    private static void logCutoff(ScanBudget.Tracker budget) {
+        log.warn("History search ran over budget and was cut off after {} lines, {} bytes",
+                 budget.lines(), budget.bytes());
+    }
+
+    private static String stars(int revision) {
+        StringBuilder stars;
+
+        stars = new StringBuilder();
+        for (int i = 0; i < revision; i++) {
+            stars.append('*');
+        }
+
+        return stars.toString();
+    }
+
+    // find a matching line within the scan budget, recording how long it
+    // took and how far the search went.
+    private int search(String target, boolean exactTarget, PatternMatcher pm, long skipMatches) {
+        ScanBudget.Tracker budget;
+        long start;
+        int seq;
+
+        // nothing can be found after skipping a negative number of matches,
+        // and the parallel search relies on the count being positive.
+        if (skipMatches < 0) {
+            Metrics.misses.increment();
+            return NONE;
+        }
+
+        budget = this.budget.start();
+        start = System.nanoTime();
+        seq = this.find(target, exactTarget, pm, budget, skipMatches);
+        Metrics.scan.record(System.nanoTime() - start);
+        Metrics.scanned.record(budget.lines());
+
+        // a sequential search stops as soon as the budget runs out, but a
+        // parallel one may have found its answer while older segments were
+        // still using it up, so only a search which found nothing has been
+        // cut off.
+        if (seq == NONE && budget.exhausted()) {
+            logCutoff(budget);
+        }
+
+        if (seq == NONE) {
+            Metrics.misses.increment();
+        } else {
+            Metrics.hits.increment();
+        }
+
+        return seq;
+    }
+
+    Supplier<String> searchReplace(String target, boolean exactTarget, String searchRegex, String replacement, long skipMatches, boolean replaceAll) {
+        PatternMatcher pm;
+        LogEntry line, newline;
+        String replacedMessage, ret;
+        long start;
+        int seq;
+
+        pm = PatternMatcher.build(searchRegex);
+        if (pm == null) {
+            return TimeMachine.empty();
+        }
+
+        seq = this.search(target, exactTarget, pm, skipMatches);
+        if (seq == NONE) {
+            return TimeMachine.empty();
+        }
+
+        line = this.entry(seq);
+        this.noteReach(seq);
+
+        start = System.nanoTime();
+        try {
+            if (replaceAll) {
+                replacedMessage = pm.replaceAll(line.body(), replacement);
+            } else {
+                replacedMessage = pm.replaceFirst(line.body(), replacement);
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            // invalid replacement, e.g. using $3 in a regex replacement
+            // which has less than three capturing groups.
+            return TimeMachine.empty();
+        }
+
+        newline = line.revise(replacedMessage);
+        line.notifyRevised();
+        this.lines.revised(seq, line);
+        Metrics.replace.record(System.nanoTime() - start);
+
+        log.info("Search and replace command matched, returning result");
+
+        ret = String.format(newline.isctcp() ? ACTIONFMT : PRIVMSGFMT,
+                            this.nickTable.name(line.nick()), stars(newline.revision()), newline.fullMessage());
+
+        // hold a reference to the nick until the revision is pushed, as the
+        // command itself is pushed first and may evict the original line.
+        this.nickTable.retain(newline.nick());
+
+        return () -> {
+            this.pushMsg(newline);
+            this.nickTable.release(newline.nick());
+            return ret;
+        };
+    }
+
+    // a null target recalls a line from any nick.
+    Supplier<String> recall(String target, boolean exactTarget, String searchRegex, int skipMatches) {
+        PatternMatcher pm;
+        LogEntry line;
+        final String ret;
+        int seq;
+
+        pm = PatternMatcher.build(searchRegex);
+        if (pm == null) {
+            return TimeMachine.empty();
+        }
+
+        seq = this.search(target, exactTarget, pm, skipMatches);
+        if (seq == NONE) {
+            return TimeMachine.empty();
+        }
+
+        line = this.entry(seq);
+        this.noteReach(seq);
+
+        log.info("Recall command matched, returning result");
+
+        ret = String.format(line.isctcp() ? ACTIONFMT : PRIVMSGFMT,
+                            this.nickTable.name(line.nick()), stars(line.revision()), line.fullMessage());
+
+        return () -> ret;
+    }
+
+    // recall the line position lines back from the newest, or if fromNewest
+    // is not set, position lines on from the oldest, counting from one.
+    // positions are counted among target's lines, or the whole channel's
+    // if target is null, and looked up directly by sequence number, or by
+    // index into the nick's queue, so that a line far back costs no more
+    // than a recent one.
+    Supplier<String> recallPosition(String target, boolean fromNewest, int position) {
+        SeqQueue seqs;
+        LogEntry line;
+        final String ret;
+        int seq;
+
+        if (target == null) {
+            if (position < 1 || position > this.size) {
+                return TimeMachine.empty();
+            }
+
+            seq = fromNewest ? this.newest() + 1 - position : this.oldest() + position - 1;
+        } else {
+            seqs = this.queue(target);
+            if (seqs == null || position < 1 || position > seqs.size()) {
+                return TimeMachine.empty();
+            }
+
+            seq = seqs.get(fromNewest ? seqs.size() - position : position - 1);
+        }
+
+        line = this.entry(seq);
+        this.noteReach(seq);
+
+        log.info("Positional recall command matched, returning result");
+
+        ret = String.format(line.isctcp() ? ACTIONFMT : PRIVMSGFMT,
+                            this.nickTable.name(line.nick()), stars(line.revision()), line.fullMessage());
+
+        return () -> ret;
+    }
+
+    // the queue of the nick target, or failing that, of the only nick which
+    // starts with target. null if there is no such nick.
+    private SeqQueue queue(String target) {
+        List<SeqQueue> queues;
+        SeqQueue ret;
+
+        ret = this.nicks.get(fold(target));
+        if (ret != null) {
+            return ret;
+        }
+
+        queues = this.nickTrie.withPrefix(fold(target));
+        return queues.size() == 1 ? queues.get(0) : null;
+    }
+}
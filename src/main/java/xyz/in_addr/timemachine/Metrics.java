@@ -0,0 +1,90 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the bot as a whole, recorded as
+ * commands are handled and exposed over JMX. Latencies are recorded in
+ * nanoseconds and reported in microseconds.
+ */
+final class Metrics {
+    private static final long MICROS = 1000;
+
+    // time spent matching a message against the command syntax, searching
+    // history, applying a replacement, and waiting for a reply to be sent.
+    static final Histogram parse = new Histogram();
+    static final Histogram scan = new Histogram();
+    static final Histogram replace = new Histogram();
+    static final Histogram send = new Histogram();
+
+    // time from a command's message being received to its reply being
+    // queued, and time spent waiting for a channel's history lock.
+    static final Histogram command = new Histogram();
+    static final Histogram lockWait = new Histogram();
+
+    // lines visited by each history search.
+    static final Histogram scanned = new Histogram();
+
+    // history searches which did and didn't find a line.
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+
+    // commands handled in the last minute.
+    static final Rate commands = new Rate();
+
+    private Metrics() {
+    }
+
+    static void register(PooledListenerManager listeners, ReplyQueue replies, ScanBudget budget) {
+        new MetricsBean("Command handling")
+            .add("Parse", "command parse times", "us", MICROS, parse)
+            .add("Scan", "history search times", "us", MICROS, scan)
+            .add("Replace", "replacement times", "us", MICROS, replace)
+            .add("Command", "command latencies", "us", MICROS, command)
+            .add("LockWait", "history lock waits", "us", MICROS, lockWait)
+            .add("Scanned", "lines scanned per search", "lines", 1, scanned)
+            .add("CommandsPerMinute", "Commands handled in the last minute", Long.class, commands::perMinute)
+            .add("Hits", "History searches which found a line", Long.class, hits::sum)
+            .add("Misses", "History searches which found nothing", Long.class, misses::sum)
+            .add("Cutoffs", "History searches cut off by the scan budget", Long.class, budget::cutoffs)
+            .add("PatternCacheHits", "Patterns found in the compiled pattern cache", Long.class, PatternMatcher::cacheHits)
+            .add("PatternCacheMisses", "Patterns compiled afresh", Long.class, PatternMatcher::cacheMisses)
+            .register("Commands", "all");
+
+        new MetricsBean("Event dispatch")
+            .add("QueueDepth", "Events waiting across all workers", Integer.class, listeners::queueDepth)
+            .add("MaxQueueDepth", "Most events any one worker has had waiting", Integer.class, listeners::maxQueueDepth)
+            .add("Dispatched", "Events handed to listeners", Long.class, listeners::dispatched)
+            .add("Stalls", "Times the server reader waited for room in a queue", Long.class, listeners::stalls)
+            .register("Events", "all");
+
+        new MetricsBean("Reply sending")
+            .add("Send", "reply send latencies", "us", MICROS, send)
+            .add("Depth", "Replies waiting to be sent", Integer.class, replies::depth)
+            .add("Sent", "Replies sent", Long.class, replies::sent)
+            .add("Stale", "Replies dropped after waiting too long", Long.class, replies::stale)
+            .add("Overflowed", "Replies dropped as the queue was full", Long.class, replies::overflowed)
+            .register("Replies", "all");
+    }
+
+    // history sizes of a channel. called again when a channel's log is
+    // replaced, which replaces the channel's bean.
+    static void register(String channel, MessageLog history) {
+        new MetricsBean("Channel history")
+            .add("Lines", "Lines retained", Integer.class, history::lines)
+            .add("Limit", "Lines which may currently be retained", Integer.class, history::limit)
+            .add("Bytes", "Estimated bytes retained", Long.class, history::bytes)
+            .add("CommandsPerMinute", "Commands handled in the last minute", Long.class, history::commandsPerMinute)
+            .add("Reach", "How far back recent commands reached, in lines", Integer.class, history::reach)
+            .register("Channel", channel);
+    }
+
+    static void register(MemoryBudget memory) {
+        new MetricsBean("History memory budget")
+            .add("MaxBytes", "Bytes history may use across all channels", Long.class, memory::maxBytes)
+            .add("TotalBytes", "Estimated bytes history uses across all channels", Long.class, memory::totalBytes)
+            .register("Memory", "all");
+    }
+}
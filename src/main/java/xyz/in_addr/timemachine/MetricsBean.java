@@ -0,0 +1,139 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MBean of read-only attributes, each read from a supplier when asked for.
+ * Attributes are only ever read through JMX, so the values behind them are
+ * never touched on the bot's own threads.
+ */
+class MetricsBean implements DynamicMBean {
+    private static final Logger log = LoggerFactory.getLogger(MetricsBean.class);
+
+    private static final String DOMAIN = "xyz.in_addr.timemachine";
+
+    private final String description;
+    private final Map<String, Supplier<?>> values;
+    private final Map<String, MBeanAttributeInfo> attributes;
+
+    MetricsBean(String description) {
+        this.description = description;
+        this.values = new LinkedHashMap<>();
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    MetricsBean add(String name, String description, Class<?> type, Supplier<?> value) {
+        this.values.put(name, value);
+        this.attributes.put(name, new MBeanAttributeInfo(name, type.getName(), description, true, false, false));
+        return this;
+    }
+
+    // count, mean and quantiles of a histogram, reported in the histogram's
+    // own unit divided by scale.
+    MetricsBean add(String name, String what, String unit, long scale, Histogram h) {
+        this.add(name + "Count", "Number of " + what + " recorded", Long.class, h::count);
+        this.add(name + "Mean", "Mean " + what + " (" + unit + ")", Double.class, () -> h.mean() / scale);
+        this.add(name + "Median", "Median " + what + " (" + unit + ")", Long.class, () -> h.quantile(0.5) / scale);
+        this.add(name + "P99", "99th percentile " + what + " (" + unit + ")", Long.class, () -> h.quantile(0.99) / scale);
+        this.add(name + "Max", "Largest " + what + " (" + unit + ")", Long.class, () -> h.max() / scale);
+        return this;
+    }
+
+    // register with the platform MBean server, replacing any bean already
+    // registered under the same name. failure is logged but otherwise
+    // ignored, as the bot runs just as well without its metrics.
+    void register(String type, String name) {
+        MBeanServer server;
+        ObjectName objectName;
+
+        try {
+            server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+
+            if (server.isRegistered(objectName)) {
+                try {
+                    server.unregisterMBean(objectName);
+                } catch (InstanceNotFoundException infe) {
+                    // unregistered by someone else in the meantime.
+                }
+            }
+
+            server.registerMBean(this, objectName);
+        } catch (JMException je) {
+            log.warn("Could not register {} metrics for {}: {}", type, name, je.toString());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+        Supplier<?> value;
+
+        value = this.values.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList ret;
+        Supplier<?> value;
+
+        ret = new AttributeList();
+        for (String a: attributes) {
+            value = this.values.get(a);
+            if (value != null) {
+                ret.add(new Attribute(a, value.get()));
+            }
+        }
+
+        return ret;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return new MBeanInfo(this.getClass().getName(), this.description,
+                             this.attributes.values().toArray(new MBeanAttributeInfo[0]),
+                             null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+}
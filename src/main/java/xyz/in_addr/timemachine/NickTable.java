@@ -0,0 +1,115 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table of the nicks present in a channel's history, so that each line only
+ * needs to store a small index rather than its own copy of the nick. Entries
+ * are reference counted by the lines which use them, and their slots are
+ * reused once no line refers to them any more.
+ *
+ * Alongside each nick, the table keeps its case-folded form and the queue of
+ * sequence numbers for that folded nick, so that neither has to be looked up
+ * again for every line. Nicks which differ only in case have separate table
+ * entries, but share a queue.
+ */
+class NickTable {
+    private String[] names, folded;
+    private SeqQueue[] queues;
+    private int[] refs;
+    private final Map<String, Integer> index;
+
+    // slots below used have been handed out at some point; those which have
+    // since been freed are kept on the free stack.
+    private int used;
+    private int[] free;
+    private int nfree;
+
+    NickTable() {
+        this.names = new String[16];
+        this.folded = new String[16];
+        this.queues = new SeqQueue[16];
+        this.refs = new int[16];
+        this.index = new HashMap<>();
+        this.used = 0;
+        this.free = new int[16];
+        this.nfree = 0;
+    }
+
+    // index of the given nick, or -1 if it is not in the table.
+    int lookup(String nick) {
+        Integer ret;
+
+        ret = this.index.get(nick);
+        return ret == null ? -1 : ret;
+    }
+
+    // add a nick to the table with no references, returning its index.
+    int add(String nick, String foldedNick, SeqQueue queue) {
+        int ret;
+
+        if (this.nfree > 0) {
+            ret = this.free[--this.nfree];
+        } else {
+            if (this.used == this.names.length) {
+                this.names = Arrays.copyOf(this.names, this.used * 2);
+                this.folded = Arrays.copyOf(this.folded, this.used * 2);
+                this.queues = Arrays.copyOf(this.queues, this.used * 2);
+                this.refs = Arrays.copyOf(this.refs, this.used * 2);
+            }
+
+            ret = this.used++;
+        }
+
+        this.names[ret] = nick;
+        this.folded[ret] = foldedNick;
+        this.queues[ret] = queue;
+        this.refs[ret] = 0;
+        this.index.put(nick, ret);
+
+        return ret;
+    }
+
+    String name(int i) {
+        return this.names[i];
+    }
+
+    String folded(int i) {
+        return this.folded[i];
+    }
+
+    SeqQueue queue(int i) {
+        return this.queues[i];
+    }
+
+    void setQueue(int i, SeqQueue queue) {
+        this.queues[i] = queue;
+    }
+
+    void retain(int i) {
+        this.refs[i]++;
+    }
+
+    // drop a reference to a nick, removing it from the table once nothing
+    // refers to it.
+    void release(int i) {
+        if (--this.refs[i] > 0) {
+            return;
+        }
+
+        this.index.remove(this.names[i]);
+        this.names[i] = null;
+        this.folded[i] = null;
+        this.queues[i] = null;
+
+        if (this.nfree == this.free.length) {
+            this.free = Arrays.copyOf(this.free, this.nfree * 2);
+        }
+
+        this.free[this.nfree++] = i;
+    }
+}
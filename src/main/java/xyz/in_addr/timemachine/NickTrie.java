@@ -0,0 +1,143 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prefix trie over the case-folded nicks present in a channel's history,
+ * mapping each nick to the queue of its message sequence numbers. Nicks are
+ * only added and removed when they first appear in or drop out of the
+ * history, so the trie is cheap to maintain, and resolving a prefix target is
+ * done once per command rather than once per line.
+ */
+class NickTrie {
+    private static class Node {
+        // children are kept sorted by key, and searched by bisection.
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        SeqQueue seqs;
+
+        Node child(char c) {
+            int i;
+
+            i = Arrays.binarySearch(this.keys, c);
+            return i < 0 ? null : this.children[i];
+        }
+
+        Node addChild(char c) {
+            Node ret;
+            int i;
+
+            i = Arrays.binarySearch(this.keys, c);
+            if (i >= 0) {
+                return this.children[i];
+            }
+
+            i = -(i + 1);
+            ret = new Node();
+
+            this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+            this.children = Arrays.copyOf(this.children, this.children.length + 1);
+            System.arraycopy(this.keys, i, this.keys, i + 1, this.keys.length - i - 1);
+            System.arraycopy(this.children, i, this.children, i + 1, this.children.length - i - 1);
+            this.keys[i] = c;
+            this.children[i] = ret;
+
+            return ret;
+        }
+
+        void removeChild(char c) {
+            int i;
+
+            i = Arrays.binarySearch(this.keys, c);
+            if (i < 0) {
+                return;
+            }
+
+            System.arraycopy(this.keys, i + 1, this.keys, i, this.keys.length - i - 1);
+            System.arraycopy(this.children, i + 1, this.children, i, this.children.length - i - 1);
+            this.keys = Arrays.copyOf(this.keys, this.keys.length - 1);
+            this.children = Arrays.copyOf(this.children, this.children.length - 1);
+        }
+
+        boolean isEmpty() {
+            return this.seqs == null && this.keys.length == 0;
+        }
+    }
+
+    private final Node root;
+
+    NickTrie() {
+        this.root = new Node();
+    }
+
+    // nick must already be case folded.
+    void put(String nick, SeqQueue seqs) {
+        Node node;
+
+        node = this.root;
+        for (int i = 0; i < nick.length(); i++) {
+            node = node.addChild(nick.charAt(i));
+        }
+
+        node.seqs = seqs;
+    }
+
+    // nick must already be case folded.
+    void remove(String nick) {
+        this.remove(this.root, nick, 0);
+    }
+
+    private boolean remove(Node node, String nick, int depth) {
+        Node child;
+
+        if (depth == nick.length()) {
+            node.seqs = null;
+        } else {
+            child = node.child(nick.charAt(depth));
+            if (child == null) {
+                return false;
+            }
+
+            if (this.remove(child, nick, depth + 1)) {
+                node.removeChild(nick.charAt(depth));
+            }
+        }
+
+        // prune nodes which no longer lead to any nick.
+        return node.isEmpty();
+    }
+
+    // collect the sequence queues of every nick starting with prefix, which
+    // must already be case folded.
+    List<SeqQueue> withPrefix(String prefix) {
+        List<SeqQueue> ret;
+        Node node;
+
+        ret = new ArrayList<>();
+
+        node = this.root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+
+        if (node != null) {
+            collect(node, ret);
+        }
+
+        return ret;
+    }
+
+    private static void collect(Node node, List<SeqQueue> into) {
+        if (node.seqs != null) {
+            into.add(node.seqs);
+        }
+
+        for (Node child: node.children) {
+            collect(child, into);
+        }
+    }
+}
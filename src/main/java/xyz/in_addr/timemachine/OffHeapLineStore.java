@@ -0,0 +1,323 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Line store keeping history out of the way of the garbage collector, for
+ * very large histories. Rather than an object per line, each field is kept
+ * in a column of primitives indexed by ring slot, and the message text is
+ * kept as UTF-8 in an arena allocated from a direct byte buffer. As lines are
+ * put and removed in order, the arena is itself used as a ring, and only
+ * needs compacting when it is grown or shrunk.
+ *
+ * The only object column is for shared revision counters, which is empty
+ * other than for messages which have been revised. Matching decodes each
+ * line into a buffer belonging to the matcher, so a search doesn't allocate
+ * anything per line.
+ */
+class OffHeapLineStore implements LineStore {
+    private static final int INITIAL_ARENA = 64 * 1024;
+    private static final int MAX_ARENA = Integer.MAX_VALUE - 8;
+
+    private static final byte FLAG_CTCP = 1;
+
+    private int[] ids, revisions, nicks, offsets, prefixLengths, bodyLengths;
+    private byte[] flags;
+    private LogEntry.Revisions[] counters;
+
+    // the text of the retained lines runs from the offset of the oldest line
+    // to head, wrapping around the end of the arena if need be. live is the
+    // number of bytes in use.
+    private ByteBuffer arena;
+    private int head, live;
+
+    // oldest sequence number and number of lines retained.
+    private int first, count;
+
+    OffHeapLineStore(int capacity) {
+        this.columns(capacity);
+        this.arena = ByteBuffer.allocateDirect(INITIAL_ARENA);
+        this.head = 0;
+        this.live = 0;
+        this.first = 0;
+        this.count = 0;
+    }
+
+    private void columns(int capacity) {
+        this.ids = new int[capacity];
+        this.revisions = new int[capacity];
+        this.nicks = new int[capacity];
+        this.offsets = new int[capacity];
+        this.prefixLengths = new int[capacity];
+        this.bodyLengths = new int[capacity];
+        this.flags = new byte[capacity];
+        this.counters = new LogEntry.Revisions[capacity];
+    }
+
+    private int slot(int seq) {
+        return Math.floorMod(seq, this.ids.length);
+    }
+
+    @Override
+    public int capacity() {
+        return this.ids.length;
+    }
+
+    @Override
+    public void resize(int capacity, int first, int last) {
+        int[] ids, revisions, nicks, offsets, prefixLengths, bodyLengths;
+        LogEntry.Revisions[] counters;
+        byte[] flags;
+        int from, to;
+
+        ids = this.ids;
+        revisions = this.revisions;
+        nicks = this.nicks;
+        offsets = this.offsets;
+        prefixLengths = this.prefixLengths;
+        bodyLengths = this.bodyLengths;
+        flags = this.flags;
+        counters = this.counters;
+
+        this.columns(capacity);
+
+        for (int seq = first; seq <= last; seq++) {
+            from = Math.floorMod(seq, ids.length);
+            to = this.slot(seq);
+
+            this.ids[to] = ids[from];
+            this.revisions[to] = revisions[from];
+            this.nicks[to] = nicks[from];
+            this.offsets[to] = offsets[from];
+            this.prefixLengths[to] = prefixLengths[from];
+            this.bodyLengths[to] = bodyLengths[from];
+            this.flags[to] = flags[from];
+            this.counters[to] = counters[from];
+        }
+
+        this.first = first;
+        this.count = last - first + 1;
+
+        // give back arena space along with ring slots.
+        if (capacity < ids.length && this.arena.capacity() > INITIAL_ARENA && this.live < this.arena.capacity() / 4) {
+            this.compact(Math.max(INITIAL_ARENA, this.live * 2));
+        }
+    }
+
+    // move the text of the retained lines to the start of a new arena.
+    private void compact(int size) {
+        ByteBuffer newarena, src;
+        int slot, length;
+
+        newarena = ByteBuffer.allocateDirect(size);
+        src = this.arena.duplicate();
+
+        for (int seq = this.first; seq < this.first + this.count; seq++) {
+            slot = this.slot(seq);
+            length = this.prefixLengths[slot] + this.bodyLengths[slot];
+
+            src.clear();
+            src.position(this.offsets[slot]);
+            src.limit(this.offsets[slot] + length);
+
+            this.offsets[slot] = newarena.position();
+            newarena.put(src);
+        }
+
+        this.head = newarena.position();
+
+        // the old buffer is freed when it is collected.
+        this.arena = newarena;
+    }
+
+    // find room in the arena for length bytes, growing it if need be.
+    private int allocate(int length) {
+        int tail, size;
+
+        if (this.count == 0) {
+            this.head = 0;
+        }
+
+        tail = this.count == 0 ? 0 : this.offsets[this.slot(this.first)];
+
+        if (this.count == 0 || this.head > tail) {
+            // the text doesn't wrap, so there is room after head and before
+            // tail.
+            if (this.arena.capacity() - this.head >= length) {
+                return this.take(this.head, length);
+            } else if (tail >= length) {
+                return this.take(0, length);
+            }
+        } else if (tail - this.head >= length) {
+            // the text wraps, so there is only room between head and tail.
+            return this.take(this.head, length);
+        }
+
+        size = this.arena.capacity();
+        while (size - this.live < length) {
+            if (size > MAX_ARENA / 2) {
+                throw new IllegalStateException("off-heap history arena is full");
+            }
+
+            size *= 2;
+        }
+
+        this.compact(size);
+
+        return this.take(this.head, length);
+    }
+
+    private int take(int offset, int length) {
+        this.head = offset + length;
+        return offset;
+    }
+
+    @Override
+    public void put(int seq, LogEntry entry) {
+        byte[] prefix, body;
+        int slot, offset;
+
+        prefix = entry.prefixBytes();
+        body = entry.bodyBytes();
+
+        if (this.count == 0) {
+            this.first = seq;
+        }
+
+        offset = this.allocate(prefix.length + body.length);
+        this.arena.position(offset);
+        this.arena.put(prefix).put(body);
+
+        slot = this.slot(seq);
+        this.ids[slot] = entry.id();
+        this.revisions[slot] = entry.revision();
+        this.nicks[slot] = entry.nick();
+        this.offsets[slot] = offset;
+        this.prefixLengths[slot] = prefix.length;
+        this.bodyLengths[slot] = body.length;
+        this.flags[slot] = entry.isctcp() ? FLAG_CTCP : 0;
+        this.counters[slot] = entry.sharedRevisions();
+
+        this.count++;
+        this.live += prefix.length + body.length;
+    }
+
+    @Override
+    public void remove(int seq) {
+        int slot;
+
+        slot = this.slot(seq);
+        this.live -= this.prefixLengths[slot] + this.bodyLengths[slot];
+        this.counters[slot] = null;
+
+        this.first++;
+        this.count--;
+    }
+
+    @Override
+    public LogEntry get(int seq) {
+        ByteBuffer src;
+        byte[] prefix, body;
+        int slot;
+
+        slot = this.slot(seq);
+        prefix = new byte[this.prefixLengths[slot]];
+        body = new byte[this.bodyLengths[slot]];
+
+        src = this.arena.duplicate();
+        src.position(this.offsets[slot]);
+        src.get(prefix).get(body);
+
+        return LogEntry.fromBytes(this.ids[slot], this.revisions[slot], this.counters[slot], this.nicks[slot],
+                                  prefix, body, (this.flags[slot] & FLAG_CTCP) != 0);
+    }
+
+    @Override
+    public int nick(int seq) {
+        return this.nicks[this.slot(seq)];
+    }
+
+    @Override
+    public int bodyLength(int seq) {
+        return this.bodyLengths[this.slot(seq)];
+    }
+
+    @Override
+    public int footprint(int seq) {
+        int slot;
+
+        slot = this.slot(seq);
+        return 6 * 4 + 1 + 8 + this.prefixLengths[slot] + this.bodyLengths[slot];
+    }
+
+    @Override
+    public void revised(int seq, LogEntry entry) {
+        this.counters[this.slot(seq)] = entry.sharedRevisions();
+    }
+
+    @Override
+    public IntPredicate matcher(PatternMatcher pm) {
+        return new BodyMatcher(pm);
+    }
+
+    private class BodyMatcher implements IntPredicate {
+        private final PatternMatcher pm;
+        private final Predicate<CharSequence> matcher;
+        private final ByteBuffer in;
+        private final CharsetDecoder decoder;
+        private CharBuffer out;
+
+        BodyMatcher(PatternMatcher pm) {
+            this.pm = pm;
+            this.matcher = pm.reusableMatcher();
+            this.in = OffHeapLineStore.this.arena.duplicate();
+            this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.out = CharBuffer.allocate(512);
+        }
+
+        @Override
+        public boolean test(int seq) {
+            int slot, start, length;
+
+            slot = OffHeapLineStore.this.slot(seq);
+            length = OffHeapLineStore.this.bodyLengths[slot];
+            if (length == 0) {
+                return false;
+            }
+
+            start = OffHeapLineStore.this.offsets[slot] + OffHeapLineStore.this.prefixLengths[slot];
+            this.in.clear();
+
+            // most lines can be ruled out without decoding them.
+            if (!this.pm.mayMatch(this.in, start, start + length)) {
+                return false;
+            }
+
+            this.in.position(start);
+            this.in.limit(start + length);
+
+            // utf-8 never takes fewer bytes than utf-16 takes chars.
+            if (this.out.capacity() < length) {
+                this.out = CharBuffer.allocate(length);
+            }
+
+            this.out.clear();
+            this.decoder.reset();
+            this.decoder.decode(this.in, this.out, true);
+            this.decoder.flush(this.out);
+            this.out.flip();
+
+            return this.matcher.test(this.out);
+        }
+    }
+}
@@ -2,6 +2,12 @@
 
 package xyz.in_addr.timemachine;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
@@ -11,28 +17,119 @@ import com.google.re2j.PatternSyntaxException;
  * standard library regex functions.
  */
 public class PatternMatcher {
+    // compiled patterns are immutable and safe to share between threads, so
+    // recently used ones are kept in a small LRU cache keyed by the pattern
+    // string, as the same corrections tend to get repeated.
+    private static final int CACHE_SIZE = 256;
+
+    // cached in place of patterns which failed to compile, so that they
+    // aren't recompiled only to fail again.
+    private static final PatternMatcher INVALID = new PatternMatcher(null, null);
+
+    private static final Map<String, PatternMatcher> cache =
+        new LinkedHashMap<String, PatternMatcher>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PatternMatcher> eldest) {
+                return this.size() > CACHE_SIZE;
+            }
+        };
+
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
     private final Pattern regex;
 
-    private PatternMatcher(Pattern p) {
+    // text which every match contains, if there is any, so that lines
+    // without it can be passed over without running the regex.
+    private final RequiredLiteral literal;
+
+    private PatternMatcher(Pattern p, RequiredLiteral literal) {
         this.regex = p;
+        this.literal = literal;
     }
 
     public static PatternMatcher build(String pattern) {
+        PatternMatcher ret;
+
+        synchronized (cache) {
+            ret = cache.get(pattern);
+        }
+
+        if (ret != null) {
+            cacheHits.incrementAndGet();
+            return ret == INVALID ? null : ret;
+        }
+
+        cacheMisses.incrementAndGet();
+
+        // compile outside the cache lock. two threads may race to compile
+        // the same pattern, in which case both results are equivalent.
+        ret = compile(pattern);
+
+        synchronized (cache) {
+            cache.put(pattern, ret);
+        }
+
+        return ret == INVALID ? null : ret;
+    }
+
+    private static PatternMatcher compile(String pattern) {
         Pattern pat;
 
         try {
             pat = Pattern.compile(pattern);
         } catch (PatternSyntaxException pse) {
-            return null;
+            return INVALID;
         }
 
-        return new PatternMatcher(pat);
+        return new PatternMatcher(pat, RequiredLiteral.of(pattern));
+    }
+
+    public static long cacheHits() {
+        return cacheHits.get();
+    }
+
+    public static long cacheMisses() {
+        return cacheMisses.get();
     }
 
     public boolean matches(String query) {
+        if (this.literal != null && !this.literal.foundIn(query)) {
+            return false;
+        }
+
         return this.regex.matcher(query).find();
     }
 
+    // match against UTF-8 encoded text, without decoding it first.
+    public boolean matches(byte[] query) {
+        if (this.literal != null && !this.literal.foundIn(query, 0, query.length)) {
+            return false;
+        }
+
+        return this.regex.matcher(query).find();
+    }
+
+    // text which every match contains, or null if there isn't any.
+    RequiredLiteral literal() {
+        return this.literal;
+    }
+
+    // quick check of whether UTF-8 encoded text between from and to might
+    // match, for text which isn't worth decoding unless it might.
+    public boolean mayMatch(ByteBuffer text, int from, int to) {
+        return this.literal == null || this.literal.foundIn(text, from, to);
+    }
+
+    // for matching many inputs in turn from a single thread, without
+    // allocating a new re2j matcher for each.
+    public Predicate<CharSequence> reusableMatcher() {
+        Matcher m;
+
+        m = this.regex.matcher("");
+        return query -> m.reset(query).find();
+    }
+
     public String replaceFirst(String query, String replacement) {
         return this.regex.matcher(query).replaceFirst(replacement);
     }
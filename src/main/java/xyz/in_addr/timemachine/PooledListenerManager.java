@@ -0,0 +1,163 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.pircbotx.Channel;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.managers.ThreadedListenerManager;
+import org.pircbotx.hooks.types.GenericChannelEvent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listener manager which hands events to a fixed pool of worker threads,
+ * rather than starting a thread for every event as the default manager does.
+ * A channel's events always go to the same worker, so that they are handled
+ * one at a time and in order, while different channels are spread over the
+ * workers and handled in parallel. Events which aren't tied to a channel all
+ * go to the first worker.
+ *
+ * Each worker has a bounded queue. Once a queue is full, the thread reading
+ * from the server waits for room, so that a backlog holds up reading from the
+ * server rather than growing without bound.
+ */
+public class PooledListenerManager extends ThreadedListenerManager {
+    private static final Logger log = LoggerFactory.getLogger(PooledListenerManager.class);
+
+    private final Worker[] workers;
+    private final AtomicLong dispatched, stalls;
+    private final AtomicInteger maxDepth;
+
+    public PooledListenerManager(int threads, int queue) {
+        // the superclass runs each listener through this executor, which
+        // runs it straight away on the calling worker.
+        super(MoreExecutors.newDirectExecutorService());
+
+        this.workers = new Worker[threads];
+        this.dispatched = new AtomicLong();
+        this.stalls = new AtomicLong();
+        this.maxDepth = new AtomicInteger();
+
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(queue, "timemachine-listener-" + i);
+            this.workers[i].start();
+        }
+
+        log.info("Dispatching events to {} workers with queues of {} events", threads, queue);
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        Worker worker;
+
+        worker = this.workers[this.lane(event)];
+
+        if (!worker.queue.offer(event)) {
+            // events raised by the listeners themselves, such as listener
+            // exceptions, are handled straight away rather than waiting on
+            // a queue which may be the worker's own.
+            if (Thread.currentThread() instanceof Worker) {
+                this.deliver(event);
+                return;
+            }
+
+            this.stalls.incrementAndGet();
+
+            try {
+                worker.queue.put(event);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting to queue event, dropping it");
+                return;
+            }
+        }
+
+        this.maxDepth.accumulateAndGet(worker.queue.size(), Math::max);
+    }
+
+    private int lane(Event event) {
+        Channel channel;
+
+        if (!(event instanceof GenericChannelEvent)) {
+            return 0;
+        }
+
+        channel = ((GenericChannelEvent) event).getChannel();
+        if (channel == null) {
+            return 0;
+        }
+
+        return Math.floorMod(channel.getName().toLowerCase(Locale.ROOT).hashCode(), this.workers.length);
+    }
+
+    private void deliver(Event event) {
+        super.onEvent(event);
+        this.dispatched.incrementAndGet();
+    }
+
+    // number of events waiting across all workers.
+    public int queueDepth() {
+        int ret;
+
+        ret = 0;
+        for (Worker w: this.workers) {
+            ret += w.queue.size();
+        }
+
+        return ret;
+    }
+
+    // the most events any one worker has had waiting.
+    public int maxQueueDepth() {
+        return this.maxDepth.get();
+    }
+
+    public long dispatched() {
+        return this.dispatched.get();
+    }
+
+    // number of times the server reader had to wait for room in a queue.
+    public long stalls() {
+        return this.stalls.get();
+    }
+
+    private class Worker extends Thread {
+        private final BlockingQueue<Event> queue;
+
+        Worker(int capacity, String name) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Event event;
+
+            while (true) {
+                try {
+                    event = this.queue.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+
+                // the superclass already reports exceptions from listeners,
+                // but a worker must not die of anything else.
+                try {
+                    PooledListenerManager.this.deliver(event);
+                } catch (RuntimeException re) {
+                    log.error("Unexpected exception dispatching event: {}", re.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count of events over the last minute, kept in a ring of ten second
+ * buckets. Recording takes no locks; an event recorded at the very moment its
+ * bucket is recycled may go uncounted, which doesn't matter for a rate.
+ */
+class Rate {
+    private static final int BUCKETS = 6;
+    private static final long WIDTH = TimeUnit.SECONDS.toNanos(10);
+
+    // the bucket of events during each window, and which window the bucket
+    // is currently counting.
+    private final AtomicLongArray counts, windows;
+
+    Rate() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.windows = new AtomicLongArray(BUCKETS);
+    }
+
+    private static long window() {
+        return System.nanoTime() / WIDTH;
+    }
+
+    void record() {
+        long now, old;
+        int i;
+
+        now = window();
+        i = (int) Math.floorMod(now, (long) BUCKETS);
+
+        old = this.windows.get(i);
+        if (old != now && this.windows.compareAndSet(i, old, now)) {
+            this.counts.set(i, 0);
+        }
+
+        this.counts.incrementAndGet(i);
+    }
+
+    // events recorded in the last minute, give or take a bucket.
+    long perMinute() {
+        long now, ret;
+
+        now = window();
+        ret = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (now - this.windows.get(i) < BUCKETS) {
+                ret += this.counts.get(i);
+            }
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,122 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pircbotx.Channel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of replies waiting to be sent to channels, so that the threads
+ * handling events don't wait on the bot's outgoing message rate limit. A
+ * single sender thread sends replies in the order they were queued, which
+ * keeps each channel's replies in order.
+ *
+ * The sender takes whatever has queued up in one go, and sends it at the pace
+ * the bot's rate limit allows. A reply which has waited longer than the
+ * maximum age by the time its turn comes is dropped, as it would make no
+ * sense so long after the command. If the queue itself fills up, new replies
+ * are dropped.
+ */
+class ReplyQueue {
+    private static final Logger log = LoggerFactory.getLogger(ReplyQueue.class);
+
+    private static final int CAPACITY = 256;
+
+    private static class Reply {
+        final Channel channel;
+        final String text;
+        final long queued;
+
+        Reply(Channel channel, String text) {
+            this.channel = channel;
+            this.text = text;
+            this.queued = System.nanoTime();
+        }
+    }
+
+    private final BlockingQueue<Reply> queue;
+    private final long maxAge;
+    private final AtomicLong sent, stale, overflowed;
+
+    // maxAge is in milliseconds.
+    ReplyQueue(long maxAge) {
+        Thread sender;
+
+        this.queue = new ArrayBlockingQueue<>(CAPACITY);
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        this.sent = new AtomicLong();
+        this.stale = new AtomicLong();
+        this.overflowed = new AtomicLong();
+
+        sender = new Thread(this::run, "timemachine-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    void send(Channel channel, String text) {
+        if (!this.queue.offer(new Reply(channel, text))) {
+            this.overflowed.incrementAndGet();
+            log.warn("Reply queue is full, dropping reply to {}", channel.getName());
+        }
+    }
+
+    private void run() {
+        List<Reply> burst;
+
+        burst = new ArrayList<>();
+
+        while (true) {
+            try {
+                burst.add(this.queue.take());
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            this.queue.drainTo(burst);
+
+            for (Reply r: burst) {
+                if (System.nanoTime() - r.queued > this.maxAge) {
+                    this.stale.incrementAndGet();
+                    log.warn("Dropping reply to {} which waited too long to be sent", r.channel.getName());
+                    continue;
+                }
+
+                // this is where the bot's rate limit makes us wait.
+                try {
+                    r.channel.send().message(r.text);
+                    this.sent.incrementAndGet();
+                    Metrics.send.record(System.nanoTime() - r.queued);
+                } catch (RuntimeException re) {
+                    log.error("Could not send reply to {}: {}", r.channel.getName(), re.toString());
+                }
+            }
+
+            burst.clear();
+        }
+    }
+
+    int depth() {
+        return this.queue.size();
+    }
+
+    long sent() {
+        return this.sent.get();
+    }
+
+    long stale() {
+        return this.stale.get();
+    }
+
+    long overflowed() {
+        return this.overflowed.get();
+    }
+}
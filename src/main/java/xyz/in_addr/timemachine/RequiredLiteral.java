@@ -0,0 +1,365 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A run of literal text which every match of a pattern must contain, used to
+ * rule out most lines with a quick search before running the pattern itself.
+ * e.g. every match of "t?eh+" contains "eh".
+ *
+ * The literal is worked out from the pattern string with a deliberately
+ * simple reading of the regex syntax. Anything it doesn't follow is taken to
+ * break up runs of literal text, so at worst it finds a shorter literal, or
+ * none, but never one which a match might lack.
+ */
+final class RequiredLiteral {
+    private final String text;
+    private final byte[] bytes;
+
+    // how far the search may move along on seeing each byte at the end of
+    // the window, as in boyer-moore-horspool.
+    private final int[] shift;
+
+    private RequiredLiteral(String text) {
+        this.text = text;
+        this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        this.shift = new int[256];
+
+        for (int i = 0; i < 256; i++) {
+            this.shift[i] = this.bytes.length;
+        }
+
+        for (int i = 0; i < this.bytes.length - 1; i++) {
+            this.shift[this.bytes[i] & 0xff] = this.bytes.length - 1 - i;
+        }
+    }
+
+    // the longest literal required by the pattern, or null if there is no
+    // such literal, or the pattern has a top level alternation, or sets
+    // flags which could change what the literal matches.
+    static RequiredLiteral of(String pattern) {
+        StringBuilder run;
+        String best;
+        int i, atom, next;
+        char c;
+
+        run = new StringBuilder();
+        best = "";
+
+        // atom is where the last literal character in the run starts, so
+        // that it can be dropped if it turns out to be optional, or -1 if
+        // the last thing read was not a literal character.
+        atom = -1;
+
+        i = 0;
+        while (i < pattern.length()) {
+            c = pattern.charAt(i);
+
+            switch (c) {
+            case '|':
+                return null;
+            case '(':
+                if (setsFlags(pattern, i)) {
+                    return null;
+                }
+                next = skipGroup(pattern, i);
+                break;
+            case '[':
+                next = skipClass(pattern, i);
+                break;
+            case '.':
+            case '^':
+            case '$':
+                next = i + 1;
+                break;
+            case '*':
+            case '?':
+            case '+':
+            case '{':
+                next = c == '{' ? repetition(pattern, i) : i + 1;
+                if (next < 0) {
+                    // not a repetition, so a literal brace, which isn't
+                    // worth the trouble.
+                    next = i + 1;
+                    break;
+                }
+
+                if (atom < 0) {
+                    // repeating something other than a literal.
+                    next = skipLazy(pattern, next);
+                    break;
+                }
+
+                if (c == '*' || c == '?' || (c == '{' && zeroMinimum(pattern, i))) {
+                    // the atom is optional.
+                    best = longer(best, run.substring(0, atom));
+                    run.setLength(0);
+                    atom = -1;
+                } else {
+                    // the last copy of a required atom still begins the
+                    // following run.
+                    best = longer(best, run);
+                    run.delete(0, atom);
+                    atom = 0;
+                }
+
+                i = skipLazy(pattern, next);
+                continue;
+            case '\\':
+                if (i + 1 == pattern.length()) {
+                    return null;
+                }
+
+                c = pattern.charAt(i + 1);
+                if (c < 0x80 && !Character.isLetterOrDigit(c)) {
+                    atom = run.length();
+                    run.append(c);
+                    i += 2;
+                    continue;
+                }
+
+                next = skipEscape(pattern, i);
+                break;
+            default:
+                atom = run.length();
+                run.appendCodePoint(pattern.codePointAt(i));
+                i += Character.charCount(pattern.codePointAt(i));
+                continue;
+            }
+
+            if (next < 0) {
+                return null;
+            }
+
+            // anything other than a literal character ends the run.
+            best = longer(best, run);
+            run.setLength(0);
+            atom = -1;
+            i = next;
+        }
+
+        best = longer(best, run);
+
+        // the search is over utf-8, which can't represent lone surrogates.
+        if (best.isEmpty() || !best.equals(new String(best.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8))) {
+            return null;
+        }
+
+        return new RequiredLiteral(best);
+    }
+
+    private static String longer(String best, CharSequence run) {
+        return run.length() > best.length() ? run.toString() : best;
+    }
+
+    // whether the parenthesis at i starts a group such as (?i) which sets
+    // case folding for the rest of the pattern.
+    private static boolean setsFlags(String pattern, int i) {
+        int j;
+
+        if (!pattern.startsWith("(?", i)) {
+            return false;
+        }
+
+        j = i + 2;
+        while (j < pattern.length() && "imsU-".indexOf(pattern.charAt(j)) >= 0) {
+            j++;
+        }
+
+        return j < pattern.length() && pattern.charAt(j) == ')' && pattern.substring(i, j).indexOf('i') >= 0;
+    }
+
+    // the offset after the group opened at i, or -1 if it isn't closed.
+    private static int skipGroup(String pattern, int i) {
+        int depth;
+        char c;
+
+        depth = 0;
+        while (i < pattern.length()) {
+            c = pattern.charAt(i);
+
+            if (c == '\\') {
+                i = pattern.startsWith("\\Q", i) ? skipEscape(pattern, i) : i + 2;
+            } else if (c == '[') {
+                i = skipClass(pattern, i);
+                if (i < 0) {
+                    return -1;
+                }
+            } else {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i + 1;
+                }
+
+                i++;
+            }
+        }
+
+        return -1;
+    }
+
+    // the offset after the character class opened at i, or -1 if it isn't
+    // closed.
+    private static int skipClass(String pattern, int i) {
+        int end;
+        char c;
+
+        i++;
+        if (i < pattern.length() && pattern.charAt(i) == '^') {
+            i++;
+        }
+
+        // a leading ] is part of the class.
+        if (i < pattern.length() && pattern.charAt(i) == ']') {
+            i++;
+        }
+
+        while (i < pattern.length()) {
+            c = pattern.charAt(i);
+
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '[' && pattern.startsWith("[:", i) && (end = pattern.indexOf(":]", i + 2)) >= 0) {
+                i = end + 2;
+            } else if (c == ']') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+
+        return -1;
+    }
+
+    // the offset after the escape at i, other than an escaped punctuation
+    // character, or -1 if it isn't one we know.
+    private static int skipEscape(String pattern, int i) {
+        int end;
+        char c;
+
+        c = pattern.charAt(i + 1);
+
+        if (c == 'Q') {
+            end = pattern.indexOf("\\E", i + 2);
+            return end < 0 ? pattern.length() : end + 2;
+        }
+
+        if (c == 'p' || c == 'P' || c == 'x') {
+            if (pattern.startsWith("{", i + 2)) {
+                end = pattern.indexOf('}', i + 3);
+                return end < 0 ? -1 : end + 1;
+            }
+
+            return Math.min(pattern.length(), i + (c == 'x' ? 4 : 3));
+        }
+
+        if (c >= '0' && c <= '7') {
+            end = i + 2;
+            while (end < i + 4 && end < pattern.length() && pattern.charAt(end) >= '0' && pattern.charAt(end) <= '7') {
+                end++;
+            }
+
+            return end;
+        }
+
+        if ("dDsSwWbBAzCaftnrv".indexOf(c) >= 0) {
+            return i + 2;
+        }
+
+        return -1;
+    }
+
+    // the offset after the counted repetition, such as {2,5}, at i, or -1 if
+    // there isn't one.
+    private static int repetition(String pattern, int i) {
+        int j;
+        boolean digits;
+
+        j = i + 1;
+        digits = false;
+        while (j < pattern.length() && Character.isDigit(pattern.charAt(j)) && pattern.charAt(j) < 0x80) {
+            j++;
+            digits = true;
+        }
+
+        if (!digits) {
+            return -1;
+        }
+
+        if (j < pattern.length() && pattern.charAt(j) == ',') {
+            j++;
+            while (j < pattern.length() && pattern.charAt(j) >= '0' && pattern.charAt(j) <= '9') {
+                j++;
+            }
+        }
+
+        return j < pattern.length() && pattern.charAt(j) == '}' ? j + 1 : -1;
+    }
+
+    // whether the counted repetition at i may repeat zero times.
+    private static boolean zeroMinimum(String pattern, int i) {
+        for (int j = i + 1; pattern.charAt(j) != ',' && pattern.charAt(j) != '}'; j++) {
+            if (pattern.charAt(j) != '0') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // skip the ? which makes a repetition lazy.
+    private static int skipLazy(String pattern, int i) {
+        return i < pattern.length() && pattern.charAt(i) == '?' ? i + 1 : i;
+    }
+
+    // the literal encoded as utf-8. not to be modified.
+    byte[] bytes() {
+        return this.bytes;
+    }
+
+    boolean foundIn(String s) {
+        return s.indexOf(this.text) >= 0;
+    }
+
+    // search utf-8 encoded text between from and to.
+    boolean foundIn(byte[] s, int from, int to) {
+        int last, j;
+
+        last = this.bytes.length - 1;
+        for (int i = from; i + last < to; i += this.shift[s[i + last] & 0xff]) {
+            j = last;
+            while (s[i + j] == this.bytes[j]) {
+                if (j-- == 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    boolean foundIn(ByteBuffer s, int from, int to) {
+        int last, j;
+
+        last = this.bytes.length - 1;
+        for (int i = from; i + last < to; i += this.shift[s.get(i + last) & 0xff]) {
+            j = last;
+            while (s.get(i + j) == this.bytes[j]) {
+                if (j-- == 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return this.text;
+    }
+}
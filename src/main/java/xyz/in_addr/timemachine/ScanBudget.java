@@ -0,0 +1,158 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Limits on the work a single command may do while searching the history: the
+ * number of lines visited, the number of bytes of message text handed to the
+ * regex engine, and the wall-clock time spent. A limit of zero means
+ * unlimited. One budget is shared by every channel; each search takes its own
+ * Tracker from it.
+ */
+class ScanBudget {
+    static final ScanBudget UNLIMITED = new ScanBudget(0, 0, 0);
+
+    // reading the clock for every line would be wasteful, so the deadline is
+    // only checked once every this many lines.
+    private static final int CLOCK_INTERVAL = 64;
+
+    private final long maxLines, maxBytes, maxNanos;
+    private final AtomicLong cutoffs;
+
+    ScanBudget(long lines, long bytes, long millis) {
+        this.maxLines = lines;
+        this.maxBytes = bytes;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        this.cutoffs = new AtomicLong();
+    }
+
+    // parse a budget specification of the form lines:bytes:millis, where any
+    // field may be empty or zero to leave it unlimited. returns null if the
+    // specification is malformed.
+    static ScanBudget parse(String spec) {
+        String[] split;
+        long[] limits;
+
+        split = spec.split(":", -1);
+        if (split.length != 3) {
+            return null;
+        }
+
+        limits = new long[3];
+        for (int i = 0; i < 3; i++) {
+            if (split[i].isEmpty()) {
+                continue;
+            }
+
+            try {
+                limits[i] = Long.parseUnsignedLong(split[i]);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+
+        return new ScanBudget(limits[0], limits[1], limits[2]);
+    }
+
+    // number of searches which have been cut off so far.
+    long cutoffs() {
+        return this.cutoffs.get();
+    }
+
+    Tracker start() {
+        return new Tracker();
+    }
+
+    /**
+     * Per-search accounting against the budget. Trackers may be charged from
+     * several threads at once when a search is run in parallel.
+     */
+    class Tracker {
+        private final long deadline;
+        private final AtomicLong lines, bytes;
+        private volatile boolean exhausted;
+
+        private Tracker() {
+            this.deadline = System.nanoTime() + ScanBudget.this.maxNanos;
+            this.lines = new AtomicLong();
+            this.bytes = new AtomicLong();
+        }
+
+        // account for visiting one line, whose body of the given length is
+        // about to be matched. returns false if the budget has run out, in
+        // which case the search must stop.
+        boolean charge(int length) {
+            return this.charge(1, length);
+        }
+
+        // account for visiting a batch of lines at once.
+        boolean charge(long nlines, long nbytes) {
+            long l, b;
+
+            if (this.exhausted) {
+                return false;
+            }
+
+            l = this.lines.addAndGet(nlines);
+            b = this.bytes.addAndGet(nbytes);
+
+            if ((ScanBudget.this.maxLines != 0 && l > ScanBudget.this.maxLines) ||
+                    (ScanBudget.this.maxBytes != 0 && b > ScanBudget.this.maxBytes) ||
+                    (ScanBudget.this.maxNanos != 0 && (l - nlines) / CLOCK_INTERVAL != l / CLOCK_INTERVAL &&
+                     System.nanoTime() - this.deadline > 0)) {
+                this.exhaust();
+                return false;
+            }
+
+            return true;
+        }
+
+        // how many of count lines, visited in order, can be charged before
+        // the line or byte limit is reached, where length maps each line's
+        // index to the length of its body. the time limit isn't considered.
+        int within(int count, IntUnaryOperator length) {
+            long n, b;
+
+            n = count;
+            if (ScanBudget.this.maxLines != 0) {
+                n = Math.min(n, Math.max(0, ScanBudget.this.maxLines - this.lines.get()));
+            }
+
+            if (ScanBudget.this.maxBytes != 0) {
+                b = this.bytes.get();
+                for (int i = 0; i < n; i++) {
+                    b += length.applyAsInt(i);
+                    if (b > ScanBudget.this.maxBytes) {
+                        return i;
+                    }
+                }
+            }
+
+            return (int) n;
+        }
+
+        // note that the search has been cut off, without charging anything.
+        synchronized void exhaust() {
+            if (!this.exhausted) {
+                this.exhausted = true;
+                ScanBudget.this.cutoffs.incrementAndGet();
+            }
+        }
+
+        boolean exhausted() {
+            return this.exhausted;
+        }
+
+        long lines() {
+            return this.lines.get();
+        }
+
+        long bytes() {
+            return this.bytes.get();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+/**
+ * Growable circular queue of message sequence numbers, kept in ascending
+ * order. Sequence numbers are appended at the tail as messages are pushed, and
+ * removed from the head as they are evicted from the channel history.
+ */
+class SeqQueue {
+    private int[] seqs;
+    private int head, size;
+
+    SeqQueue() {
+        this.seqs = new int[4];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // the i'th oldest sequence number in the queue, counting from zero.
+    int get(int i) {
+        return this.seqs[(this.head + i) & (this.seqs.length - 1)];
+    }
+
+    int first() {
+        return this.get(0);
+    }
+
+    int last() {
+        return this.get(this.size - 1);
+    }
+
+    void add(int seq) {
+        if (this.size == this.seqs.length) {
+            this.grow();
+        }
+
+        this.seqs[(this.head + this.size) & (this.seqs.length - 1)] = seq;
+        this.size++;
+    }
+
+    int removeFirst() {
+        int ret;
+
+        if (this.size == 0) {
+            throw new IllegalStateException("removing from empty queue");
+        }
+
+        ret = this.seqs[this.head];
+        this.head = (this.head + 1) & (this.seqs.length - 1);
+        this.size--;
+
+        return ret;
+    }
+
+    // capacity is always a power of two, so indices can be masked rather
+    // than taken modulo the length.
+    private void grow() {
+        int[] newseqs;
+
+        newseqs = new int[this.seqs.length * 2];
+        for (int i = 0; i < this.size; i++) {
+            newseqs[i] = this.get(i);
+        }
+
+        this.seqs = newseqs;
+        this.head = 0;
+    }
+}
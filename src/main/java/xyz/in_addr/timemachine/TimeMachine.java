@@ -2,13 +2,14 @@
 
 package xyz.in_addr.timemachine;
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -30,56 +31,160 @@ import org.slf4j.LoggerFactory;
 public class TimeMachine extends ListenerAdapter {
     private static final Logger log = LoggerFactory.getLogger(TimeMachine.class);
 
-    // substitution and recall commands. the regexen here are based on ones
-    // originally shared by puck meerburg, which were subsequently hacked on for
-    // timemachine. i spent an inordinate amount of time on debacktrackifying
-    // them for compatibility with google's re2j library, however puck still
-    // writes better regexes than i do, so these are based on more recent
-    // versions of her regexes which support arbitrary input delimiters. the
-    // code which *really* needs re2j's linear-time matching now indirects
-    // through a wrapper class to prevent naming collisions, and we default to
-    // the standard library's backtracking implementation otherwise.
-    //
-    // fun fact: matching regex with regex is hard.
-    private final Pattern SED_MATCH = Pattern.compile("^[sS](\\W)((?:\\\\\\1|(?:(?!\\1).))*)(?!\\\\)\\1((?:\\\\\\1|\\\\\\\\|(?:(?!\\1).))*)(?:\\1([^ ~]*)((?:~[0-9]+)?))?");
-    private final Pattern PRINT_MATCH = Pattern.compile("^[pP](\\W)((?:\\\\\\1|(?:(?!\\1).))*)(?!\\\\)\\1([^ ~]*)((?:~[0-9]+)?)");
-
-    private final Pattern ADDRESSED_MATCH = Pattern.compile("^\\s*([^,:;\\s/]+)[,:;]\\s+");
+    // commands are parsed by Command. the code which *really* needs re2j's
+    // linear-time matching indirects through a wrapper class to prevent
+    // naming collisions, and we default to the standard library's
+    // backtracking implementation otherwise.
+    static final Pattern ADDRESSED_MATCH = Pattern.compile("^\\s*([^,:;\\s/]+)[,:;]\\s+");
     private final String SOURCE_URL = "https://github.com/multiplexd/timemachine"; // self documentation
 
-    private final Pattern BOTSNACK_MATCH = Pattern.compile("^\\s*botsnack\\s*$");
+    static final Pattern BOTSNACK_MATCH = Pattern.compile("^\\s*botsnack\\s*$");
     private final String BOTSNACK_RESPONSE = ":D";
 
-    private final Set<String> ignoreList;
-    private final Map<String, MessageLog> messageLog;
+    private final IgnoreList ignoreList;
+    private final ConcurrentMap<String, MessageLog> messageLog;
     private final String logChannel;
-    private final int recallLimit;
-
-    // ignores is expected to be a Set implementation which is safe against
-    // concurrent accesses.
-    public TimeMachine(int limit, Set<String> ignores, String logchan) {
-        this.recallLimit = limit;
+    private final HistoryOptions history;
+    private final MemoryBudget memory;
+    private final ReplyQueue replies;
+    private final Path journalDir;
+
+    // ignores is shared with the admin listener, which updates it.
+    public TimeMachine(HistoryOptions history, ReplyQueue replies, IgnoreList ignores, String logchan) {
+        this.history = history;
+        this.memory = history.memory() > 0 ? new MemoryBudget(history.memory()) : null;
+        this.replies = replies;
+        this.journalDir = history.journal();
         this.ignoreList = ignores;
         this.logChannel = logchan;
-        this.messageLog = Collections.synchronizedMap(new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+        // channel names are case insensitive, hence the skip list rather
+        // than a hash map. the map itself is only touched to look up (or
+        // create) a channel's log; all history accesses are serialised by
+        // the per-channel lock in MessageLog, so that a slow command in one
+        // channel does not hold up any other channel.
+        this.messageLog = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        if (this.memory != null) {
+            Metrics.register(this.memory);
+        }
+
+        if (this.journalDir != null) {
+            this.restoreJournals();
+        }
 
         log.info("Time machine is initialised. Vworp vworp!");
     }
 
-    // must be called with messageLog's lock held!
+    // a channel's log, created on first use. creating a log opens its
+    // journal and registers it with the memory budget and for metrics, so
+    // it must happen exactly once per channel, which the skip list's
+    // computeIfAbsent doesn't promise; logs are instead created under the
+    // map's monitor, which lookups of existing logs never take.
     private MessageLog getChannelLog(String channel) {
         MessageLog ret;
 
         ret = this.messageLog.get(channel);
+        if (ret != null) {
+            return ret;
+        }
 
-        if (ret == null) {
-            ret = new MessageLog();
-            this.messageLog.put(channel, ret);
+        synchronized (this.messageLog) {
+            ret = this.messageLog.get(channel);
+            if (ret == null) {
+                ret = this.newChannelLog(channel);
+                this.messageLog.put(channel, ret);
+            }
         }
 
         return ret;
     }
 
+    private MessageLog newChannelLog(String channel) {
+        MessageLog ret;
+        Journal journal;
+
+        journal = null;
+        if (this.journalDir != null) {
+            try {
+                journal = new Journal(Journal.channelDir(this.journalDir, channel));
+            } catch (IOException ioe) {
+                log.error("Could not open history journal for {}: {}", channel, ioe.toString());
+            }
+        }
+
+        ret = new MessageLog(this.history, this.memory, journal);
+        Metrics.register(channel, ret);
+
+        return ret;
+    }
+
+    // a channel's history, or null if there is none, for reporting on it.
+    MessageLog history(String channel) {
+        return this.messageLog.get(channel);
+    }
+
+    long memoryLimit() {
+        return this.memory == null ? 0 : this.memory.maxBytes();
+    }
+
+    // names of all channels with recorded history.
+    List<String> channels() {
+        return new ArrayList<>(this.messageLog.keySet());
+    }
+
+    // copy of a channel's history, oldest first.
+    List<HistoryRecord> snapshot(String channel) {
+        MessageLog history;
+
+        history = this.getChannelLog(channel);
+
+        history.lock.lock();
+        try {
+            return history.snapshot();
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    // fill a channel's history with previously recorded history, oldest
+    // first. this is done before joining any channels, so a channel which
+    // already has history got it from its journal, which the instance the
+    // history came from was keeping too; that history is kept.
+    void restore(String channel, List<HistoryRecord> records) {
+        MessageLog history;
+
+        history = this.getChannelLog(channel);
+
+        history.lock.lock();
+        try {
+            if (history.lines() != 0) {
+                log.info("Keeping journalled history for {} rather than restoring it", channel);
+                return;
+            }
+
+            history.restore(records);
+        } finally {
+            history.lock.unlock();
+        }
+    }
+
+    // rebuild the history of every channel with a journal, so that it is
+    // available as soon as the channel is joined.
+    private void restoreJournals() {
+        try {
+            Files.createDirectories(this.journalDir);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.journalDir, Files::isDirectory)) {
+                for (Path dir: stream) {
+                    log.info("Restoring history for {}", Journal.channelName(dir));
+                    this.getChannelLog(Journal.channelName(dir));
+                }
+            }
+        } catch (IOException ioe) {
+            log.error("Could not read history journal directory: {}", ioe.toString());
+        }
+    }
+
     private class Message {
         private final String user, message;
         private final boolean ctcp;
@@ -177,46 +282,136 @@ public class TimeMachine extends ListenerAdapter {
         String reply;
         Matcher botsnack, addressed;
         MessageLog history;
+        long received, locking;
+        boolean command;
 
+        received = System.nanoTime();
         reply = null;
+        result = null;
         msg = new Message(event.getUser().getNick(), event.getMessage(), isctcp);
 
-        if (this.ignoreList.contains(msg.getUser())) {
+        if (this.ignoreList.ignores(msg.getUser(), event.getUserHostmask().getHostmask())) {
             return;
         }
 
-        result = tryBotsnack(msg);
+        // plain chat is only pushed to the history.
+        command = mayBeCommand(msg.getMessage());
+
+        if (command) {
+            result = tryBotsnack(msg);
+        }
 
-        if (result == null) {
+        if (command && result == null) {
             checkAddressee(msg);
             result = tryDocsRequest(msg, event.getBot().getNick());
         }
 
-        synchronized (this.messageLog) {
-            history = this.getChannelLog(event.getChannel().getName());
+        history = this.getChannelLog(event.getChannel().getName());
 
-            if (result == null) {
+        locking = System.nanoTime();
+        history.lock.lock();
+        Metrics.lockWait.record(System.nanoTime() - locking);
+        try {
+            if (command && result == null) {
                 result = tryRecall(history, msg);
             }
 
-            if (result == null) {
+            if (command && result == null) {
+                result = tryPositionalRecall(history, msg);
+            }
+
+            if (command && result == null) {
                 result = trySearchReplace(history, msg);
             }
 
-            history.pushMsg(msg);
+            history.pushMsg(msg.getUser(), msg.getMessagePrefix(), msg.getMessageBody(), msg.isCtcp());
 
             if (result != null) {
                 reply = result.get();
             }
+        } finally {
+            history.lock.unlock();
         }
 
         if (reply != null) {
-            event.getChannel().send().message(reply);
+            this.replies.send(event.getChannel(), reply);
         }
+
+        if (result != null) {
+            Metrics.command.record(System.nanoTime() - received);
+            Metrics.commands.record();
+            history.noteCommand();
+        }
+    }
+
+    // whether a message might be any of the commands below, judging only by
+    // its first few characters, so that the commands are only parsed from
+    // the rare message which might be one. this errs on the side of saying
+    // yes, but must never say no to a message which would be accepted as a
+    // command.
+    static boolean mayBeCommand(String message) {
+        int i, start;
+
+        // botsnack, allowing for leading whitespace.
+        i = skipSpace(message, 0);
+        if (message.startsWith("botsnack", i)) {
+            return true;
+        }
+
+        // recall and search and replace, unaddressed.
+        if (isCommandStart(message, 0)) {
+            return true;
+        }
+
+        // an addressee, as matched by ADDRESSED_MATCH: a run of characters
+        // other than separators, whitespace and slashes, then a separator
+        // and whitespace.
+        start = i;
+        while (i < message.length() && ",:;/".indexOf(message.charAt(i)) < 0 && !isSpace(message.charAt(i))) {
+            i++;
+        }
+
+        if (i == start || i + 1 >= message.length() || ",:;".indexOf(message.charAt(i)) < 0
+                || !isSpace(message.charAt(i + 1))) {
+            return false;
+        }
+
+        i = skipSpace(message, i + 1);
+
+        // recall and search and replace, or a request for the docs.
+        return isCommandStart(message, i) || message.regionMatches(true, i, "docs", 0, 4) ||
+            message.regionMatches(true, i, "source", 0, 6);
+    }
+
+    // the first two characters of a p// or s/// command: the command letter,
+    // then a delimiter which isn't a word character.
+    private static boolean isCommandStart(String message, int i) {
+        char delim;
+
+        if (i + 1 >= message.length() || "pPsS".indexOf(message.charAt(i)) < 0) {
+            return false;
+        }
+
+        delim = message.charAt(i + 1);
+        return !(delim == '_' || (delim >= '0' && delim <= '9') || (delim >= 'a' && delim <= 'z') ||
+                 (delim >= 'A' && delim <= 'Z'));
+    }
+
+    // whitespace as matched by \s.
+    private static boolean isSpace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private static int skipSpace(String message, int i) {
+        while (i < message.length() && isSpace(message.charAt(i))) {
+            i++;
+        }
+
+        return i;
     }
 
     private Supplier<String> tryBotsnack(Message msg) {
-        if (!msg.isCtcp() && this.BOTSNACK_MATCH.matcher(msg.getMessage()).matches()) {
+        if (!msg.isCtcp() && BOTSNACK_MATCH.matcher(msg.getMessage()).matches()) {
             log.info("Sending botsnack response");
             return () -> this.BOTSNACK_RESPONSE;
         }
@@ -227,7 +422,7 @@ public class TimeMachine extends ListenerAdapter {
     private void checkAddressee(Message msg) {
         Matcher matcher;
 
-        matcher = this.ADDRESSED_MATCH.matcher(msg.getMessage());
+        matcher = ADDRESSED_MATCH.matcher(msg.getMessage());
 
         if (matcher.find()) {
             msg.setAddressee(matcher.group(1), matcher.end());
@@ -249,81 +444,107 @@ public class TimeMachine extends ListenerAdapter {
         return null;
     }
 
-    private static Supplier<String> empty() {
+    static Supplier<String> empty() {
         return () -> null;
     }
 
-    // TODO(multi): p/foo/g for global recall
-    // TODO(multi): p[+-][0-9]+
+    // a target of g recalls the newest matching line from any nick, as for
+    // the g flag of search and replace.
     private Supplier<String> tryRecall(MessageLog history, Message msg) {
-        Matcher match;
-        String delim, query, target, offstring;
+        Command command;
+        String query, target, offstring;
         boolean exactTarget;
         int skipMatches;
+        long start;
 
-        match = this.PRINT_MATCH.matcher(msg.getAddressedMessage());
-        if (!match.find()) return null;
-
-        delim = match.group(1);
-
-        // guard against invalid delimiters
-        if (delim.equals("\\") || delim.equals(" ")) {
-            return null;
-        }
+        start = System.nanoTime();
+        command = Command.parseRecall(msg.getAddressedMessage());
+        if (command == null) return null;
 
         log.info("Recall command triggered");
 
-        query = match.group(2).replace("\\" + delim, delim);
-        target = match.group(3);
-        offstring = match.group(4);
+        query = command.query;
+        target = command.target;
+        offstring = command.offset;
 
-        msg.setPrefixOffset(match.end());
+        msg.setPrefixOffset(command.end);
 
         exactTarget = false;
         if (target.equals("")) {
             exactTarget = true;
             target = msg.getAddressee() != null ? msg.getAddressee() : msg.getUser();
+        } else if (target.equals("g")) {
+            target = null;
         }
 
         if (offstring.equals("")) {
             skipMatches = 0;
         } else {
             try {
-                // remove leading tilde
-                skipMatches = Integer.parseUnsignedInt(offstring.substring(1));
+                // remove leading tilde. offsets too large for an int are
+                // rejected rather than wrapping round to negative.
+                skipMatches = Integer.parseInt(offstring.substring(1));
             } catch (NumberFormatException nfe) {
                 return empty();
             }
         }
 
+        Metrics.parse.record(System.nanoTime() - start);
         return history.recall(target, exactTarget, query, skipMatches);
     }
 
+    // p-N recalls the line N lines back, and p+N the Nth oldest line
+    // retained, counting lines either from the whole channel or, if a target
+    // is given or the command is addressed, from that nick.
+    private Supplier<String> tryPositionalRecall(MessageLog history, Message msg) {
+        Command command;
+        String target;
+        int position;
+        long start;
+
+        start = System.nanoTime();
+        command = Command.parsePosition(msg.getAddressedMessage());
+        if (command == null) return null;
+
+        log.info("Positional recall command triggered");
+
+        msg.setPrefixOffset(command.end);
+
+        target = command.target;
+        if (target.equals("")) {
+            target = msg.getAddressee();
+        }
+
+        try {
+            // remove leading sign
+            position = Integer.parseUnsignedInt(command.offset.substring(1));
+        } catch (NumberFormatException nfe) {
+            return empty();
+        }
+
+        Metrics.parse.record(System.nanoTime() - start);
+        return history.recallPosition(target, command.offset.charAt(0) == '-', position);
+    }
+
     private Supplier<String> trySearchReplace(MessageLog history, Message msg) {
-        Matcher match;
-        String delim, query, replacement, target, offstring;
+        Command command;
+        String query, replacement, target, offstring;
         boolean exactTarget, global;
         int skipMatches;
+        long start;
 
+        start = System.nanoTime();
         global = false;
 
-        match = this.SED_MATCH.matcher(msg.getAddressedMessage());
-        if (!match.find()) return null;
-
-        delim = match.group(1);
-
-        // guard against invalid delimiters
-        if (delim.equals("\\") || delim.equals(" ")) {
-            return null;
-        }
+        command = Command.parseSearchReplace(msg.getAddressedMessage());
+        if (command == null) return null;
 
         log.info("Search and replace command triggered");
 
-
-        query = match.group(2).replace("\\" + delim, delim);
-        replacement = match.group(3).replace("\\" + delim, delim);
-        target = match.group(4);
-        offstring = match.group(5);
+        query = command.query;
+        replacement = command.replacement;
+        target = command.target;
+        offstring = command.offset;
 
         if (target == null && offstring == null && replacement.equals("")) {
             // reject s/foo/ form, with an empty replacement string
@@ -331,7 +552,7 @@ public class TimeMachine extends ListenerAdapter {
             return null;
         }
 
-        msg.setPrefixOffset(match.end());
+        msg.setPrefixOffset(command.end);
 
         exactTarget = false;
         if (target == null || target.equals("") || target.equals("g")) {
@@ -344,270 +565,15 @@ public class TimeMachine extends ListenerAdapter {
             skipMatches = 0;
         } else {
             try {
-                // remove leading tilde
-                skipMatches = Integer.parseUnsignedInt(offstring.substring(1));
+                // remove leading tilde. offsets too large for an int are
+                // rejected rather than wrapping round to negative.
+                skipMatches = Integer.parseInt(offstring.substring(1));
             } catch (NumberFormatException nfe) {
                 return empty();
             }
         }
 
+        Metrics.parse.record(System.nanoTime() - start);
         return history.searchReplace(target, exactTarget, query, replacement, skipMatches, global);
     }
-
-
-    // logging structure for messages in a single channel.
-    private class MessageLog {
-        private final String PRIVMSGFMT = "<%s%s> %s";
-        private final String ACTIONFMT = "* %s%s %s";
-
-        private final LinkedList<LogEntry> messages;
-        private int nextId;
-
-        MessageLog() {
-            this.messages = new LinkedList<>();
-            this.nextId = 0;
-        }
-
-        void pushMsg(Message msg) {
-            this.pushMsg(
-                new LogEntry(
-                    this.nextId++,
-                    msg.getUser(),
-                    msg.getMessagePrefix(),
-                    msg.getMessageBody(),
-                    msg.isCtcp()
-                )
-            );
-        }
-
-        private void pushMsg(LogEntry msg) {
-            // messages are stored in the linked list in reverse order -- new
-            // messages are prepended to the list, and old messages are dropped
-            // from the end of the list.
-            this.messages.addFirst(msg);
-
-            if (this.messages.size() > TimeMachine.this.recallLimit) {
-                this.messages.removeLast();
-            }
-        }
-
-        private boolean targetMatches(String nick, String target, boolean exactMatch) {
-            if (exactMatch) {
-                return nick.equalsIgnoreCase(target);
-            } else {
-                return nick.toLowerCase().startsWith(target.toLowerCase());
-            }
-        }
-
-
-        Supplier<String> searchReplace(String target, boolean exactTarget, String searchRegex, String replacement, long skipMatches, boolean replaceAll) {
-            PatternMatcher pm;
-            ListIterator<LogEntry> iter;
-            LogEntry line, newline, tmp;
-            String replacedMessage, ret;
-            StringBuilder stars;
-            int id;
-
-            line = null;
-
-            pm = PatternMatcher.build(searchRegex);
-            if (pm == null) {
-                return TimeMachine.empty();
-            }
-
-            iter = this.messages.listIterator(0);
-            while (iter.hasNext()) {
-                tmp = iter.next();
-
-                if (!this.targetMatches(tmp.nick(), target, exactTarget)) {
-                    continue;
-                }
-
-                if (tmp.body() == null) {
-                    continue;
-                }
-
-                if (!pm.matches(tmp.body())) {
-                    continue;
-                }
-
-                if (skipMatches > 0) {
-                    skipMatches -= 1;
-                } else {
-                    line = tmp;
-                    break;
-                }
-            }
-
-            if (line == null) return TimeMachine.empty();
-
-            id = line.id();
-            try {
-                if (replaceAll) {
-                    replacedMessage = pm.replaceAll(line.body(), replacement);
-                } else {
-                    replacedMessage = pm.replaceFirst(line.body(), replacement);
-                }
-            } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
-                // invalid replacement, e.g. using $3 in a regex replacement
-                // which has less than three capturing groups.
-                return TimeMachine.empty();
-            }
-
-            newline = line.revise(replacedMessage);
-
-            iter = this.messages.listIterator(0);
-            while (iter.hasNext()) {
-                tmp = iter.next();
-                if (tmp.id() == id) {
-                    tmp.notifyRevised();
-                }
-            }
-
-            stars = new StringBuilder();
-            for (int i = 0; i < newline.revision(); i++) {
-                stars.append('*');
-            }
-
-            log.info("Search and replace command matched, returning result");
-
-            ret = String.format(newline.isctcp() ? this.ACTIONFMT : this.PRIVMSGFMT,
-                                line.nick(), stars.toString(), newline.fullMessage());
-
-            return () -> {
-                this.pushMsg(newline);
-                return ret;
-            };
-        }
-
-        // TODO(multi): target == null indicates searching all messages?
-        // TODO(multi); p[+-][0-9]+ syntax
-        Supplier<String> recall(String target, boolean exactTarget, String searchRegex, int skipMatches) {
-            PatternMatcher pm;
-            ListIterator<LogEntry> iter;
-            LogEntry line, tmp;
-            StringBuilder stars;
-            final String ret;
-
-            line = null;
-
-            pm = PatternMatcher.build(searchRegex);
-            if (pm == null) {
-                return TimeMachine.empty();
-            }
-
-            iter = this.messages.listIterator(0);
-            while (iter.hasNext()) {
-                tmp = iter.next();
-
-                if (!this.targetMatches(tmp.nick(), target, exactTarget)) {
-                    continue;
-                }
-
-                if (tmp.body().length() == 0) {
-                    continue;
-                }
-
-                if (!pm.matches(tmp.body())) {
-                    continue;
-                }
-
-                if (skipMatches > 0) {
-                    skipMatches--;
-                } else {
-                    line = tmp;
-                    break;
-                }
-            }
-
-            if (line == null) return TimeMachine.empty();
-
-            stars = new StringBuilder();
-            for (int i = 0; i < line.revision(); i++) {
-                stars.append('*');
-            }
-
-            log.info("Recall command matched, returning result");
-
-            ret = String.format(line.isctcp() ? this.ACTIONFMT : this.PRIVMSGFMT,
-                                line.nick(), stars.toString(), line.fullMessage());
-
-            return () -> ret;
-        }
-    }
-
-    private class LogEntry {
-        private final int id, revision;
-        private final String nick, prefix, body;
-        private final boolean ctcp;
-        private int nextRevision;
-
-        private LogEntry(int id, int revision, String nick, String prefix, String body, boolean ctcp) {
-            if (nick == null || prefix == null || body == null) {
-                throw new NullPointerException("String parameter is unexpectedly null");
-            }
-
-            if (prefix.length() == 0 && body.length() == 0) {
-                throw new IllegalArgumentException("Message prefix and message body must not both be empty");
-            } else if (prefix.length() != 0 && ctcp) {
-                throw new IllegalArgumentException("CTCP messages may not have a non-empty prefix part");
-            }
-
-            this.id = id;
-            this.revision = revision;
-            this.nick = nick;
-            this.prefix = prefix;
-            this.body = body;
-            this.ctcp = ctcp;
-            this.nextRevision = revision + 1;
-        }
-
-        LogEntry(int id, String nick, String prefix, String body, boolean ctcp) {
-            this(id, 0, nick, prefix, body, ctcp);
-        }
-
-        int id() {
-            return this.id;
-        }
-
-        int revision() {
-            return this.revision;
-        }
-
-        int nextRevision() {
-            return this.nextRevision;
-        }
-
-        void notifyRevised() {
-            this.nextRevision++;
-        }
-
-        boolean isctcp() {
-            return this.ctcp;
-        }
-
-        String nick() {
-            return this.nick;
-        }
-
-        String prefix() {
-            return this.prefix;
-        }
-
-        String body() {
-            return this.body;
-        }
-
-        String fullMessage() {
-            return this.prefix + this.body;
-        }
-
-        LogEntry revise(String newMessage) {
-            if (this.body.length() == 0) {
-                throw new IllegalArgumentException("cannot revise channel message without a message body");
-            }
-
-            return new LogEntry(this.id, this.nextRevision, this.nick, this.prefix, newMessage, this.ctcp);
-        }
-    }
 }
@@ -0,0 +1,182 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+/**
+ * Index of a channel's history by the trigrams (runs of three bytes) in the
+ * UTF-8 encoded bodies of its lines. Each trigram has a queue of the sequence
+ * numbers of the lines containing it, oldest first, which like the per-nick
+ * queues is added to as lines are pushed and taken from as they are evicted.
+ *
+ * A search for text which every match must contain need then only visit the
+ * lines in the queue of the text's rarest trigram.
+ */
+class TrigramIndex {
+    // rough heap cost of a sequence number in a queue, allowing for queues
+    // being up to half empty.
+    static final int POSTING_BYTES = 8;
+
+    private static final SeqQueue EMPTY = new SeqQueue();
+
+    // open addressing table of queues, keyed by trigram. keys are stored
+    // plus one, so that zero marks an empty slot.
+    private int[] keys;
+    private SeqQueue[] queues;
+    private int count;
+
+    TrigramIndex() {
+        this.keys = new int[1024];
+        this.queues = new SeqQueue[1024];
+        this.count = 0;
+    }
+
+    private static int trigram(byte[] b, int i) {
+        return (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff);
+    }
+
+    private int slot(int key) {
+        int h;
+
+        h = key * 0x9e3779b9;
+        return (h ^ h >>> 16) & (this.keys.length - 1);
+    }
+
+    // the slot holding the trigram, or the empty slot where it would go.
+    private int find(int trigram) {
+        int i;
+
+        i = this.slot(trigram + 1);
+        while (this.keys[i] != 0 && this.keys[i] != trigram + 1) {
+            i = (i + 1) & (this.keys.length - 1);
+        }
+
+        return i;
+    }
+
+    // index a newly pushed line, returning the number of queues it was
+    // added to.
+    int add(int seq, byte[] body) {
+        SeqQueue queue;
+        int ret, i;
+
+        ret = 0;
+        for (int j = 0; j + 2 < body.length; j++) {
+            i = this.find(trigram(body, j));
+            queue = this.queues[i];
+
+            if (queue == null) {
+                queue = new SeqQueue();
+                this.keys[i] = trigram(body, j) + 1;
+                this.queues[i] = queue;
+                this.count++;
+            } else if (queue.last() == seq) {
+                // a repeated trigram.
+                continue;
+            }
+
+            queue.add(seq);
+            ret++;
+
+            if (this.count * 2 > this.keys.length) {
+                this.grow();
+            }
+        }
+
+        return ret;
+    }
+
+    // remove the oldest line from the index, given its body, returning the
+    // number of queues it was removed from.
+    int remove(int seq, byte[] body) {
+        SeqQueue queue;
+        int ret, i;
+
+        ret = 0;
+        for (int j = 0; j + 2 < body.length; j++) {
+            i = this.find(trigram(body, j));
+            queue = this.queues[i];
+
+            // a repeated trigram has already been removed.
+            if (queue == null || queue.first() != seq) {
+                continue;
+            }
+
+            queue.removeFirst();
+            ret++;
+
+            if (queue.isEmpty()) {
+                this.delete(i);
+            }
+        }
+
+        return ret;
+    }
+
+    // the queue of the rarest trigram in text, which every line containing
+    // text is in. null if text is too short to have any trigrams.
+    SeqQueue rarest(byte[] text) {
+        SeqQueue ret, queue;
+
+        ret = null;
+        for (int j = 0; j + 2 < text.length; j++) {
+            queue = this.queues[this.find(trigram(text, j))];
+            if (queue == null) {
+                return EMPTY;
+            }
+
+            if (ret == null || queue.size() < ret.size()) {
+                ret = queue;
+            }
+        }
+
+        return ret;
+    }
+
+    // empty a slot, moving later entries of the same probe sequence back
+    // to fill the gap.
+    private void delete(int i) {
+        int j, home;
+
+        this.keys[i] = 0;
+        this.queues[i] = null;
+        this.count--;
+
+        j = i;
+        while (true) {
+            j = (j + 1) & (this.keys.length - 1);
+            if (this.keys[j] == 0) {
+                return;
+            }
+
+            // an entry can move back to the gap unless its home slot lies
+            // cyclically between the gap and the entry.
+            home = this.slot(this.keys[j]);
+            if (((j - home) & (this.keys.length - 1)) >= ((j - i) & (this.keys.length - 1))) {
+                this.keys[i] = this.keys[j];
+                this.queues[i] = this.queues[j];
+                this.keys[j] = 0;
+                this.queues[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void grow() {
+        int[] oldkeys;
+        SeqQueue[] oldqueues;
+        int i;
+
+        oldkeys = this.keys;
+        oldqueues = this.queues;
+        this.keys = new int[oldkeys.length * 2];
+        this.queues = new SeqQueue[oldkeys.length * 2];
+
+        for (int j = 0; j < oldkeys.length; j++) {
+            if (oldkeys[j] != 0) {
+                i = this.find(oldkeys[j] - 1);
+                this.keys[i] = oldkeys[j];
+                this.queues[i] = oldqueues[j];
+            }
+        }
+    }
+}
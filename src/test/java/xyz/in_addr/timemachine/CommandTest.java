@@ -0,0 +1,136 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandTest {
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    // delimiters, including one two chars long, and a lone surrogate, and
+    // characters which can't be delimiters.
+    private static final String[] DELIMITERS = {
+        "/", "/", "#", "|", "~", EMOJI, EMOJI, "\uD83D",
+        " ", "\\", "_", "a", "\n", "",
+    };
+
+    // what follows the delimiter, other than the delimiter itself, chosen
+    // to exercise escaped backslashes, every line terminator, and offsets
+    // with and without digits.
+    private static final String[] ATOMS = {
+        "/", "#", EMOJI, "\uDE00", "\\", "\\\\",
+        "\n", "\r", "\u0085", "\u2028", "\u2029",
+        "~", "~1", "~23", "~x", "1", "42",
+        "a", "g", "_", " ", "  ", "$1", ".*", "alice",
+    };
+
+    // the command which the reference regex matches at the start of message,
+    // split up in the same way as the parser does, or null if it doesn't
+    // match. the parser doesn't take backslashes or spaces as delimiters,
+    // which the regexes would.
+    private static String reference(String message, boolean sed) {
+        Matcher m;
+        String delim;
+
+        m = (sed ? Command.SED_MATCH : Command.PRINT_MATCH).matcher(message);
+        if (!m.find()) {
+            return null;
+        }
+
+        delim = m.group(1);
+        if (delim.equals("\\") || delim.equals(" ")) {
+            return null;
+        }
+
+        if (sed) {
+            return describe(unescape(m.group(2), delim), unescape(m.group(3), delim), m.group(4), m.group(5), m.end());
+        }
+
+        return describe(unescape(m.group(2), delim), null, m.group(3), m.group(4), m.end());
+    }
+
+    private static String parsed(String message, boolean sed) {
+        Command c;
+
+        c = sed ? Command.parseSearchReplace(message) : Command.parseRecall(message);
+        if (c == null) {
+            return null;
+        }
+
+        return describe(c.query, c.replacement, c.target, c.offset, c.end);
+    }
+
+    private static String unescape(String s, String delim) {
+        return s.replace("\\" + delim, delim);
+    }
+
+    private static String describe(String query, String replacement, String target, String offset, int end) {
+        return "query=" + query + " replacement=" + replacement + " target=" + target
+            + " offset=" + offset + " end=" + end;
+    }
+
+    private static String printable(String s) {
+        StringBuilder ret;
+
+        ret = new StringBuilder();
+        for (char c: s.toCharArray()) {
+            if (c < ' ' || c > '~') {
+                ret.append(String.format("\\u%04x", (int) c));
+            } else {
+                ret.append(c);
+            }
+        }
+
+        return ret.toString();
+    }
+
+    // the parser must split up every message exactly as the regexes do.
+    // messages are kept short, as the regexes backtrack badly on long ones.
+    @Test
+    public void parserMatchesRegexes() {
+        Random random;
+        StringBuilder body;
+        String delim, m;
+        int parsed, len, pick;
+
+        random = new Random(20);
+        parsed = 0;
+
+        for (int i = 0; i < 100000; i++) {
+            delim = DELIMITERS[random.nextInt(DELIMITERS.length)];
+            body = new StringBuilder(delim);
+            len = random.nextInt(12);
+            for (int j = 0; j < len; j++) {
+                // the delimiter, escaped or not, is what matters most.
+                pick = random.nextInt(ATOMS.length + 6);
+                if (pick < 3) {
+                    body.append(delim);
+                } else if (pick < 5) {
+                    body.append('\\').append(delim);
+                } else if (pick < 6) {
+                    body.append('\\');
+                } else {
+                    body.append(ATOMS[pick - 6]);
+                }
+            }
+
+            for (boolean sed: new boolean[] {false, true}) {
+                m = (sed ? "sS" : "pP").charAt(random.nextInt(2)) + body.toString();
+                assertEquals(printable(m), reference(m, sed), parsed(m, sed));
+                if (parsed(m, sed) != null) {
+                    parsed++;
+                }
+            }
+        }
+
+        // a good share of messages should be commands, or this tests very
+        // little.
+        assertTrue(parsed > 40000);
+    }
+}
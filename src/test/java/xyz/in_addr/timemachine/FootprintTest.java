@@ -0,0 +1,149 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FootprintTest {
+    private static final int LINES = 10000;
+    private static final String[] NICKS = new String[50];
+
+    static {
+        for (int i = 0; i < NICKS.length; i++) {
+            NICKS[i] = "nick" + i;
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    // heap used by a string on java 8, which this builds for: the object,
+    // and its array of UTF-16 chars.
+    private static int string(String s) {
+        return 24 + align(16 + 2 * s.length());
+    }
+
+    // heap used by a line as it was stored before: an entry holding its
+    // own revision counter, and strings for the nick and body, and for the
+    // prefix if it isn't empty. the nick was a fresh string for every
+    // line, as received.
+    private static int oldFootprint(String nick, String prefix, String body) {
+        return 40 + 16 + string(nick) + string(body) + (prefix.isEmpty() ? 0 : string(prefix));
+    }
+
+    private static String body(Random random) {
+        StringBuilder ret;
+
+        ret = new StringBuilder();
+        while (ret.length() < 40 + random.nextInt(40)) {
+            ret.append(random.nextInt(1000)).append(' ');
+        }
+
+        return ret.toString().trim();
+    }
+
+    // push the same lines to a log kept as entries on the heap, and one kept
+    // off it, returning how many bytes per line the old layout would have
+    // used for them.
+    private static double fill(MessageLog heap, MessageLog offHeap) {
+        Random random;
+        String nick, prefix, body;
+        long old;
+
+        random = new Random(11);
+        old = 0;
+
+        for (int i = 0; i < LINES; i++) {
+            // a new string for each line, as each event brings one.
+            nick = new String(NICKS[random.nextInt(NICKS.length)]);
+            prefix = random.nextInt(10) == 0 ? new String(NICKS[random.nextInt(NICKS.length)]) + ": " : "";
+            body = body(random);
+
+            heap.pushMsg(nick, prefix, body, false);
+            offHeap.pushMsg(nick, prefix, body, false);
+            old += oldFootprint(nick, prefix, body);
+        }
+
+        return (double) old / LINES;
+    }
+
+    @Test
+    public void compactLinesTakeLessThanStrings() {
+        MessageLog heap, offHeap;
+        double old;
+
+        heap = new MessageLog(new HistoryOptions().setLimit(LINES), null, null);
+        offHeap = new MessageLog(new HistoryOptions().setLimit(LINES).setOffHeap(true), null, null);
+        old = fill(heap, offHeap);
+
+        assertEquals(LINES, heap.lines());
+        assertEquals(LINES, offHeap.lines());
+
+        // the bodies here are about sixty chars, and the nicks six, for
+        // which the old layout took over 250 bytes a line.
+        assertTrue("old layout estimated at " + old, old > 250);
+        assertTrue("heap entries take " + (double) heap.bytes() / LINES + " bytes a line",
+                   heap.bytes() < old * LINES * 0.6);
+        assertTrue("off heap entries take " + (double) offHeap.bytes() / LINES + " bytes a line",
+                   offHeap.bytes() < old * LINES * 0.5);
+    }
+
+    // every line from a nick refers to one copy of it, however many copies
+    // of the nick the lines were pushed with.
+    @Test
+    public void nicksAreSharedNotCopied() {
+        MessageLog log;
+        List<HistoryRecord> records;
+        String first;
+
+        log = new MessageLog(new HistoryOptions().setLimit(100), null, null);
+        first = new String("alice");
+
+        log.pushMsg(first, "", "one", false);
+        for (int i = 0; i < 20; i++) {
+            log.pushMsg(new String("alice"), "", "line " + i, false);
+            log.pushMsg(new String("Bob"), "", "line " + i, false);
+        }
+
+        records = log.snapshot();
+        for (HistoryRecord r: records) {
+            if (r.nick.equals("alice")) {
+                assertSame(first, r.nick);
+            } else {
+                assertSame(records.get(2).nick, r.nick);
+            }
+        }
+    }
+
+    // a nick's entry in the table goes once its last line is evicted, and
+    // its slot is reused, so the table holds only the nicks in the history.
+    @Test
+    public void nickTableHoldsOnlyNicksInHistory() {
+        MessageLog log;
+        List<HistoryRecord> records;
+        String again;
+
+        log = new MessageLog(new HistoryOptions().setLimit(10), null, null);
+
+        log.pushMsg("alice", "", "hello", false);
+        for (int i = 0; i < 10; i++) {
+            log.pushMsg("bob", "", "line " + i, false);
+        }
+
+        // alice's only line has been evicted, so her name isn't kept, and a
+        // new copy is stored when she speaks again.
+        again = new String("alice");
+        log.pushMsg(again, "", "back", false);
+
+        records = log.snapshot();
+        assertSame(again, records.get(records.size() - 1).nick);
+    }
+}
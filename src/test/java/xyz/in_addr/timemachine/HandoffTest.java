@@ -0,0 +1,72 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandoffTest {
+    private static TimeMachine machine() {
+        return new TimeMachine(new HistoryOptions().setLimit(100), new ReplyQueue(1000), new IgnoreList(), null);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Test
+    public void wrongTokenIsRefusedAndRightOneStillServed() throws Exception {
+        TimeMachine old, wrong, right;
+        List<HistoryRecord> records, received;
+        CountDownLatch done;
+        int port;
+
+        records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new HistoryRecord(i, i, 0, i % 2 == 0 ? "alice" : "bob", "", "line " + i, false));
+        }
+
+        old = machine();
+        old.restore("#chan", records);
+
+        done = new CountDownLatch(1);
+        port = freePort();
+        Handoff.serve(port, "s3cret", old, done::countDown);
+
+        wrong = machine();
+        try {
+            Handoff.receive(port, "guess", wrong);
+            fail("handoff with the wrong token succeeded");
+        } catch (IOException ioe) {
+            // expected.
+        }
+
+        assertTrue(wrong.channels().isEmpty());
+        assertFalse("old instance quit after a refused handoff", done.await(200, TimeUnit.MILLISECONDS));
+
+        right = machine();
+        Handoff.receive(port, "s3cret", right);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        received = right.snapshot("#chan");
+        assertEquals(records.size(), received.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).nick, received.get(i).nick);
+            assertEquals(records.get(i).body, received.get(i).body);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+    private static final String[] NICKS = {"alice", "Alicia", "bob", "BOB2", "carol", "ALICE"};
+    private static final String[] WORDS = {"foo", "bar", "baz", "teh", "qux", "héllo"};
+
+    private static MessageLog log(int limit, int parallel) {
+        return log(limit, parallel, ScanBudget.UNLIMITED);
+    }
+
+    private static MessageLog log(int limit, int parallel, ScanBudget budget) {
+        return new MessageLog(new HistoryOptions().setLimit(limit).setParallel(parallel).setBudget(budget), null, null);
+    }
+
+    private static MessageLog[] pair(int lines, long seed) {
+        return pair(lines, seed, ScanBudget.UNLIMITED);
+    }
+
+    // fill a sequential and an always-parallel log with the same lines.
+    private static MessageLog[] pair(int lines, long seed, ScanBudget budget) {
+        MessageLog[] ret;
+        Random random;
+        String nick, body;
+
+        ret = new MessageLog[] {log(lines, 0, budget), log(lines, 1, budget)};
+        random = new Random(seed);
+
+        for (int i = 0; i < lines; i++) {
+            nick = NICKS[random.nextInt(NICKS.length)];
+            body = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)] + " " + i;
+
+            for (MessageLog log: ret) {
+                log.pushMsg(nick, "", body, false);
+            }
+        }
+
+        return ret;
+    }
+
+    @Test
+    public void parallelSearchMatchesSequential() {
+        MessageLog[] logs;
+        String[] targets = {"alice", "bob", "al", "b", "carol", null};
+        String[] patterns = {"foo", "teh qux", "h.llo", "[0-9]{4}$", "nothing"};
+        int[] skips = {0, 1, 7, 100, 4095, 4096, 9999, 19999, 20000, Integer.MAX_VALUE};
+        String expected;
+
+        // several segments' worth, so that the parallel search splits.
+        logs = pair(20000, 1);
+
+        for (String target: targets) {
+            for (String pattern: patterns) {
+                for (int skip: skips) {
+                    for (boolean exact: new boolean[] {true, false}) {
+                        expected = logs[0].recall(target, exact, pattern, skip).get();
+                        assertEquals(target + " " + pattern + " ~" + skip,
+                                     expected, logs[1].recall(target, exact, pattern, skip).get());
+                    }
+                }
+            }
+        }
+    }
+
+    // a search cut off by the budget finds nothing, so the parallel search
+    // must find exactly what the sequential one finds within the budget,
+    // however much of it the older segments use up meanwhile.
+    @Test
+    public void budgetedParallelSearchMatchesSequential() {
+        MessageLog[] logs;
+        ScanBudget[] budgets = {
+            new ScanBudget(3000, 0, 0), new ScanBudget(9000, 0, 0), new ScanBudget(15000, 0, 0),
+            new ScanBudget(0, 50000, 0), new ScanBudget(0, 200000, 0), new ScanBudget(12000, 150000, 0),
+        };
+        String[] targets = {"alice", "al", null};
+        String[] patterns = {"foo", "teh qux", "h.llo", "nothing"};
+        int[] skips = {0, 1, 7, 100, 1000, 5000};
+        String expected;
+        int hits, misses;
+
+        hits = 0;
+        misses = 0;
+
+        for (ScanBudget budget: budgets) {
+            logs = pair(20000, 4, budget);
+
+            for (String target: targets) {
+                for (String pattern: patterns) {
+                    for (int skip: skips) {
+                        expected = logs[0].recall(target, false, pattern, skip).get();
+                        assertEquals(target + " " + pattern + " ~" + skip,
+                                     expected, logs[1].recall(target, false, pattern, skip).get());
+
+                        if (expected == null) {
+                            misses++;
+                        } else {
+                            hits++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // the budgets should let some searches through, and cut others off.
+        assertTrue(hits > 50);
+        assertTrue(misses > 50);
+    }
+
+    // offsets of 2^31 or more used to wrap round to negative, which threw
+    // from the parallel search, and skipped nothing in the sequential one.
+    @Test
+    public void negativeSkipFindsNothing() {
+        MessageLog[] logs;
+
+        logs = pair(10000, 2);
+
+        for (MessageLog log: logs) {
+            assertNull(log.recall("alice", true, "foo", -1).get());
+            assertNull(log.recall("a", false, "foo", (int) 3000000000L).get());
+            assertNull(log.recall(null, false, "foo", Integer.MIN_VALUE).get());
+            assertNull(log.searchReplace("bob", true, "foo", "x", -1, false).get());
+        }
+    }
+
+    @Test
+    public void hugeSkipOnParallelPathFindsNothing() {
+        MessageLog[] logs;
+
+        logs = pair(10000, 3);
+
+        for (MessageLog log: logs) {
+            assertNull(log.recall(null, false, "foo", 999999).get());
+            assertNull(log.searchReplace("a", false, "foo", "x", Long.MAX_VALUE, false).get());
+        }
+    }
+
+    // a search and replace holds a reference to its target's nick until the
+    // revision is pushed, but the command line itself is pushed first, and
+    // may evict the nick's only line. the nick's lines must still be found
+    // once the revision is in.
+    @Test
+    public void revisionOfEvictedNicksOnlyLineIsFound() {
+        MessageLog log;
+        Supplier<String> revision;
+
+        log = log(3, 0);
+        log.pushMsg("alice", "", "foo bar", false);
+        log.pushMsg("bob", "", "one", false);
+        log.pushMsg("bob", "", "two", false);
+
+        revision = log.searchReplace("alice", true, "foo", "baz", 0, false);
+        log.pushMsg("bob", "s/foo/baz/alice", "", false);
+        assertNull(log.recall("alice", true, "foo", 0).get());
+
+        assertEquals("<alice*> baz bar", revision.get());
+        assertEquals("<alice*> baz bar", log.recall("alice", true, "baz", 0).get());
+        assertEquals("<alice*> baz bar", log.recall("al", false, "baz", 0).get());
+        assertEquals("<alice**> qux bar", log.searchReplace("alice", true, "baz", "qux", 0, false).get());
+    }
+
+    // as above, but with a case variant of the nick speaking while the
+    // revision is pending, so that both entries must end up on one queue.
+    @Test
+    public void caseVariantWhileRevisionPending() {
+        MessageLog log;
+        Supplier<String> revision;
+
+        log = log(3, 0);
+        log.pushMsg("alice", "", "foo bar", false);
+        log.pushMsg("bob", "", "one", false);
+        log.pushMsg("bob", "", "two", false);
+
+        revision = log.searchReplace("alice", true, "foo", "baz", 0, false);
+        log.pushMsg("bob", "s/foo/baz/alice", "", false);
+        log.pushMsg("ALICE", "", "baz quux", false);
+
+        assertEquals("<alice*> baz bar", revision.get());
+        assertEquals("<alice*> baz bar", log.recall("alice", true, "baz", 0).get());
+        assertEquals("<ALICE> baz quux", log.recall("alice", true, "baz", 1).get());
+        assertEquals("<ALICE> baz quux", log.recall("Alice", true, "quux", 0).get());
+
+        // evict everything from either case of the nick, then bring it
+        // back, which must neither throw nor lose the new line.
+        for (int i = 0; i < 3; i++) {
+            log.pushMsg("bob", "", "filler " + i, false);
+        }
+        assertNull(log.recall("alice", true, "baz", 0).get());
+
+        log.pushMsg("Alice", "", "back again", false);
+        assertEquals("<Alice> back again", log.recall("ALICE", true, "back", 0).get());
+        assertEquals("<Alice> back again", log.recall("a", false, "back", 0).get());
+    }
+
+    // nick references are held by each line, and by a search and replace
+    // until its revision is pushed, whether or not it ever is.
+    @Test
+    public void nickReferencesAcrossEviction() {
+        MessageLog log;
+        Supplier<String> revision;
+
+        log = log(2, 0);
+        log.pushMsg("carol", "", "hello", false);
+
+        // a revision which is never pushed still leaves carol's line to be
+        // evicted normally.
+        log.searchReplace("carol", true, "hello", "bye", 0, false);
+        log.pushMsg("bob", "", "one", false);
+        log.pushMsg("bob", "", "two", false);
+        assertNull(log.recall("carol", true, "hello", 0).get());
+        assertNull(log.recall("c", false, ".", 0).get());
+
+        log.pushMsg("Carol", "", "hi again", false);
+        assertEquals("<Carol> hi again", log.recall("carol", true, "hi", 0).get());
+
+        // a revision pushed while the original is still retained.
+        revision = log.searchReplace("carol", true, "hi", "ho", 0, false);
+        assertEquals("<Carol*> ho again", revision.get());
+        assertEquals("<Carol*> ho again", log.recall("carol", true, "ho", 0).get());
+        assertEquals("<Carol> hi again", log.recall("carol", true, "again", 1).get());
+    }
+}
@@ -0,0 +1,168 @@
+/* See LICENSE file for license details */
+
+package xyz.in_addr.timemachine;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeMachineTest {
+    // whitespace as matched by \s, and some which isn't.
+    private static final String[] SPACES = {
+        "", "", " ", "  ", "\t", "\n", "\u000B", "\f", "\r", " ", " ",
+    };
+
+    private static final String[] ADDRESSEES = {
+        "", "", "bob", "timemachine", "a", "b/c", "\u00e9", "\uD83D\uDE00", "bot_",
+    };
+
+    private static final String[] SEPARATORS = {
+        ":", ",", ";", "/", " ", ":\t", "::",
+    };
+
+    // the starts of commands, and of things which aren't quite commands.
+    private static final String[] HEADS = {
+        "botsnack", "botsnacks", "BOTSNACK", "docs", "DOCS", "Source", "sources", "doc",
+        "p", "p", "p", "P", "s", "s", "s", "S", "q", "x", "",
+    };
+
+    private static final String[] DELIMITERS = {
+        "/", "/", "#", "|", "-", "+", "~", ",", "\u00e9", "\uD83D\uDE00", "\uD83D", " ", "\\", "a",
+    };
+
+    private static final String[] ATOMS = {
+        "/", "/", "#", "-", "+", "~", "|", "\\", "\\/", " ", "\t", "\n", "_", "a", "3", "42",
+        "\u00e9", "\uD83D\uDE00", "\uD83D", "foo", "g", "~1", ":", ",", ";", "p", "s", "botsnack",
+    };
+
+    // whether the bot would treat the message as a command: a botsnack, a
+    // request for the docs, or a recall, positional recall or search and
+    // replace, each of the last three either on its own or addressed to
+    // someone. docs requests are taken whoever they are addressed to, which
+    // accepts more than the bot does, but never less.
+    private static boolean accepted(String message) {
+        Matcher addressed;
+        String body;
+
+        if (TimeMachine.BOTSNACK_MATCH.matcher(message).matches()) {
+            return true;
+        }
+
+        body = message;
+        addressed = TimeMachine.ADDRESSED_MATCH.matcher(message);
+        if (addressed.find()) {
+            body = message.substring(addressed.end());
+            if (body.equalsIgnoreCase("docs") || body.equalsIgnoreCase("source")) {
+                return true;
+            }
+        }
+
+        return Command.parseRecall(body) != null || Command.parsePosition(body) != null
+            || Command.parseSearchReplace(body) != null;
+    }
+
+    private static String pick(Random random, String[] from) {
+        return from[random.nextInt(from.length)];
+    }
+
+    private static String printable(String s) {
+        StringBuilder ret;
+
+        ret = new StringBuilder();
+        for (char c: s.toCharArray()) {
+            if (c < ' ' || c > '~') {
+                ret.append(String.format("\\u%04x", (int) c));
+            } else {
+                ret.append(c);
+            }
+        }
+
+        return ret.toString();
+    }
+
+    // the quick check for whether a message might be a command must never
+    // turn away one which is.
+    @Test
+    public void mayBeCommandAcceptsEveryCommand() {
+        Random random;
+        StringBuilder message;
+        String m, head, delim;
+        int accepted, len;
+
+        random = new Random(19);
+        accepted = 0;
+
+        for (int i = 0; i < 200000; i++) {
+            message = new StringBuilder();
+
+            // most messages are built like commands, the rest are noise.
+            delim = null;
+            if (random.nextInt(4) != 0) {
+                if (random.nextInt(3) == 0) {
+                    message.append(pick(random, SPACES));
+                }
+
+                if (random.nextBoolean()) {
+                    message.append(pick(random, ADDRESSEES)).append(pick(random, SEPARATORS)).append(pick(random, SPACES));
+                }
+
+                head = pick(random, HEADS);
+                message.append(head);
+
+                if (head.length() == 1 && random.nextInt(4) != 0) {
+                    delim = pick(random, DELIMITERS);
+                    message.append(delim);
+                }
+            }
+
+            len = random.nextInt(8);
+            for (int j = 0; j < len; j++) {
+                if (delim != null && random.nextInt(3) == 0) {
+                    message.append(delim);
+                } else {
+                    message.append(random.nextInt(4) == 0 ? pick(random, SPACES) : pick(random, ATOMS));
+                }
+            }
+
+            m = message.toString();
+            if (accepted(m)) {
+                accepted++;
+                assertTrue(printable(m), TimeMachine.mayBeCommand(m));
+            }
+        }
+
+        // enough messages should be commands for this to test much.
+        assertTrue(accepted > 10000);
+    }
+
+    @Test
+    public void mayBeCommandAcceptsEdgeCases() {
+        String[] commands = {
+            "botsnack", "  botsnack  ", "\tbotsnack\n", "s/a/b", "p/a/", "P#a#", "p-3", "p+12alice",
+            "s\uD83D\uDE00a\uD83D\uDE00b", "bob: s/a/b/", "bob:\ts/a/b/", " bob, p/x/", "bob; docs",
+            "timemachine: SOURCE", "\u00e9: p/x/", "bob: p-1", "bot_:  s|a|b|g~2",
+        };
+
+        for (String m: commands) {
+            assertTrue(printable(m), accepted(m));
+            assertTrue(printable(m), TimeMachine.mayBeCommand(m));
+        }
+    }
+
+    @Test
+    public void mayBeCommandRejectsChat() {
+        String[] chat = {
+            "", "hello world", "so: what now", "bob: hello", "speaking of which", "pizza", "bob:s/a/b/",
+            "b/c: s/a/b/", "bob: documents", "s", "p",
+        };
+
+        for (String m: chat) {
+            assertFalse(printable(m), accepted(m));
+            assertFalse(printable(m), TimeMachine.mayBeCommand(m));
+        }
+    }
+}